@@ -1,10 +1,9 @@
-import jdk.nashorn.internal.runtime.regexp.RegExp;
 import java.util.*;
 
 /** Quaternions. Basic operations. */
-public class Quaternion {
+public final class Quaternion {
 
-   private double real, part_i, part_j, part_k;
+   private final double real, part_i, part_j, part_k;
 
    /** Constructor from four double values.
     * @param a real part
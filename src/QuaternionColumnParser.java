@@ -0,0 +1,423 @@
+import java.nio.CharBuffer;
+import java.util.*;
+import java.util.concurrent.*;
+
+/** Bulk conversion of text columns to quaternions. Every row holds one
+ * quaternion in the form produced by <code>Quaternion.toString</code>
+ * ("a+bi+cj+dk" written as four signed numbers, e.g. "1.0-4.0-5.0+7.0").
+ * Rows are parsed in chunks on a fork/join pool into a packed array,
+ * row <code>n</code> at the elements <code>4*n .. 4*n+3</code>. A row
+ * that cannot be parsed does not stop the others: it is filled with NaN
+ * and its error message is kept in the result.
+ */
+public final class QuaternionColumnParser {
+
+   /** rows parsed by one task without splitting it further */
+   private static final int CHUNK = 4096;
+
+   /** exact powers of ten (up to 10^22 every one is a double) */
+   private static final double[] POWERS = new double[23];
+
+   static {
+      POWERS[0] = 1.;
+      for (int i = 1; i < POWERS.length; i++)
+         POWERS[i] = POWERS[i - 1] * 10.;
+   }
+
+   private QuaternionColumnParser() {
+   }
+
+   /** Result of a bulk conversion. */
+   public static final class Result {
+      private final double[] values;
+      private final SortedMap<Integer, String> errors;
+
+      private Result (double[] values, SortedMap<Integer, String> errors) {
+         this.values = values;
+         this.errors = Collections.unmodifiableSortedMap (errors);
+      }
+
+      /** Number of rows.
+       * @return number of rows, including the failed ones
+       */
+      public int size() {
+         return values.length / 4;
+      }
+
+      /** Parsed values. The array is not copied.
+       * @return packed quaternions, NaN in the failed rows
+       */
+      public double[] values() {
+         return values;
+      }
+
+      /** Quaternion of a row.
+       * @param row number of the row
+       * @return quaternion parsed from the row
+       */
+      public Quaternion get (int row) {
+         return new Quaternion (values[4 * row], values[4 * row + 1],
+            values[4 * row + 2], values[4 * row + 3]);
+      }
+
+      /** Test whether some rows failed.
+       * @return true, if at least one row could not be parsed
+       */
+      public boolean hasErrors() {
+         return !errors.isEmpty();
+      }
+
+      /** Failed rows.
+       * @return error messages by row number, in increasing row order
+       */
+      public SortedMap<Integer, String> errors() {
+         return errors;
+      }
+   }
+
+   /** Conversion of a column of strings on the common pool.
+    * @param rows one quaternion per element
+    * @return parsed column
+    */
+   public static Result parse (String[] rows) {
+      return parse (Arrays.asList (rows), ForkJoinPool.commonPool());
+   }
+
+   /** Conversion of a column of character sequences on the common pool.
+    * @param rows one quaternion per element
+    * @return parsed column
+    */
+   public static Result parse (List<? extends CharSequence> rows) {
+      return parse (rows, ForkJoinPool.commonPool());
+   }
+
+   /** Conversion of a column of character sequences. The list should
+    * support fast random access.
+    * @param rows one quaternion per element
+    * @param pool pool running the conversion
+    * @return parsed column
+    */
+   public static Result parse (final List<? extends CharSequence> rows, ForkJoinPool pool) {
+      return run (new Column (rows.size()) {
+         @Override
+         String parse (int row, double[] out) {
+            CharSequence text = rows.get (row);
+            if (text == null)
+               return "missing value";
+            return parseRow (text, 0, text.length(), out, 4 * row);
+         }
+      }, pool);
+   }
+
+   /** Conversion of a delimited character buffer on the common pool.
+    * @param buffer rows separated by the delimiter; a trailing delimiter
+    *     does not start a new row
+    * @param delimiter row separator, usually '\n'
+    * @return parsed column
+    */
+   public static Result parse (char[] buffer, char delimiter) {
+      return parse (buffer, delimiter, ForkJoinPool.commonPool());
+   }
+
+   /** Conversion of a delimited character buffer.
+    * @param buffer rows separated by the delimiter
+    * @param delimiter row separator, usually '\n'
+    * @param pool pool running the conversion
+    * @return parsed column
+    */
+   public static Result parse (char[] buffer, char delimiter, ForkJoinPool pool) {
+      int count = 0;
+      for (char c : buffer)
+         if (c == delimiter)
+            count++;
+      final int[] starts = new int[count + 2];
+      int rows = 0;
+      for (int i = 0; i < buffer.length; i++)
+         if (buffer[i] == delimiter)
+            starts[++rows] = i + 1;
+      if (starts[rows] < buffer.length)
+         starts[++rows] = buffer.length + 1;
+      final CharSequence text = CharBuffer.wrap (buffer);
+      return run (new Column (rows) {
+         @Override
+         String parse (int row, double[] out) {
+            return parseRow (text, starts[row], starts[row + 1] - 1, out, 4 * row);
+         }
+      }, pool);
+   }
+
+   /** Conversion of a delimited byte buffer on the common pool.
+    * @param buffer ASCII (or UTF-8) rows separated by the delimiter; a
+    *     trailing delimiter does not start a new row
+    * @param delimiter row separator, usually '\n'
+    * @return parsed column
+    */
+   public static Result parse (byte[] buffer, byte delimiter) {
+      return parse (buffer, delimiter, ForkJoinPool.commonPool());
+   }
+
+   /** Conversion of a delimited byte buffer.
+    * @param buffer ASCII (or UTF-8) rows separated by the delimiter
+    * @param delimiter row separator, usually '\n'
+    * @param pool pool running the conversion
+    * @return parsed column
+    */
+   public static Result parse (final byte[] buffer, byte delimiter, ForkJoinPool pool) {
+      int count = 0;
+      for (byte b : buffer)
+         if (b == delimiter)
+            count++;
+      final int[] starts = new int[count + 2];
+      int rows = 0;
+      for (int i = 0; i < buffer.length; i++)
+         if (buffer[i] == delimiter)
+            starts[++rows] = i + 1;
+      if (starts[rows] < buffer.length)
+         starts[++rows] = buffer.length + 1;
+      final CharSequence text = new Ascii (buffer, 0, buffer.length);
+      return run (new Column (rows) {
+         @Override
+         String parse (int row, double[] out) {
+            return parseRow (text, starts[row], starts[row + 1] - 1, out, 4 * row);
+         }
+      }, pool);
+   }
+
+   /** Source of rows. */
+   private abstract static class Column {
+      final int size;
+
+      Column (int size) {
+         this.size = size;
+      }
+
+      /** Conversion of one row into out[4*row .. 4*row+3].
+       * @return null on success, otherwise the error message */
+      abstract String parse (int row, double[] out);
+   }
+
+   /** Bytes seen as characters, one character per byte. */
+   private static final class Ascii implements CharSequence {
+      private final byte[] bytes;
+      private final int from, to;
+
+      Ascii (byte[] bytes, int from, int to) {
+         this.bytes = bytes;
+         this.from = from;
+         this.to = to;
+      }
+
+      @Override
+      public int length() {
+         return to - from;
+      }
+
+      @Override
+      public char charAt (int i) {
+         return (char) (bytes[from + i] & 0xff);
+      }
+
+      @Override
+      public CharSequence subSequence (int start, int end) {
+         return new Ascii (bytes, from + start, from + end);
+      }
+
+      @Override
+      public String toString() {
+         return new String (bytes, from, to - from, java.nio.charset.StandardCharsets.UTF_8);
+      }
+   }
+
+   private static Result run (Column column, ForkJoinPool pool) {
+      double[] out = new double[4 * column.size];
+      SortedMap<Integer, String> errors = new ConcurrentSkipListMap<Integer, String>();
+      pool.invoke (new Chunk (column, out, errors, 0, column.size));
+      return new Result (out, errors);
+   }
+
+   /** Conversion of the rows from .. to-1. */
+   private static final class Chunk extends RecursiveAction {
+      private static final long serialVersionUID = 1L;
+      private final Column column;
+      private final double[] out;
+      private final SortedMap<Integer, String> errors;
+      private final int from, to;
+
+      Chunk (Column column, double[] out, SortedMap<Integer, String> errors, int from, int to) {
+         this.column = column;
+         this.out = out;
+         this.errors = errors;
+         this.from = from;
+         this.to = to;
+      }
+
+      @Override
+      protected void compute() {
+         if (to - from > CHUNK) {
+            int mid = (from + to) >>> 1;
+            invokeAll (new Chunk (column, out, errors, from, mid),
+               new Chunk (column, out, errors, mid, to));
+            return;
+         }
+         for (int row = from; row < to; row++) {
+            String error;
+            try {
+               error = column.parse (row, out);
+            } catch (RuntimeException e) {
+               error = String.valueOf (e.getMessage());
+            }
+            if (error != null) {
+               Arrays.fill (out, 4 * row, 4 * row + 4, Double.NaN);
+               errors.put (row, error);
+            }
+         }
+      }
+   }
+
+   /** Conversion of text[start .. end-1] into out[offset .. offset+3].
+    * Surrounding white space is ignored. A component starts at the
+    * beginning of the row or at a sign that does not follow an exponent
+    * mark.
+    * @return null on success, otherwise the error message
+    */
+   private static String parseRow (CharSequence text, int start, int end,
+         double[] out, int offset) {
+      while (start < end && text.charAt (start) <= ' ')
+         start++;
+      while (end > start && text.charAt (end - 1) <= ' ')
+         end--;
+      int component = 0;
+      int from = start;
+      for (int i = start + 1; i <= end; i++) {
+         char c = i < end ? text.charAt (i) : '+';
+         if ((c == '+' || c == '-') && (i == end || !isExponentMark (text.charAt (i - 1)))) {
+            if (component == 4)
+               return "more than four parts in \"" + text.subSequence (start, end) + "\"";
+            double value = parseNumber (text, from, i);
+            if (value != value && !isNaN (text, from, i))
+               return "\"" + text.subSequence (from, i) + "\" is not a number";
+            out[offset + component++] = value;
+            from = i;
+         }
+      }
+      if (component != 4)
+         return "expected four parts in \"" + text.subSequence (start, end) + "\"";
+      return null;
+   }
+
+   private static boolean isExponentMark (char c) {
+      return c == 'e' || c == 'E';
+   }
+
+   private static boolean isNaN (CharSequence text, int from, int to) {
+      if (from < to && (text.charAt (from) == '+' || text.charAt (from) == '-'))
+         from++;
+      return to - from == 3 && text.charAt (from) == 'N' && text.charAt (from + 1) == 'a'
+         && text.charAt (from + 2) == 'N';
+   }
+
+   /** Conversion of one signed number. Plain decimals with at most 15
+    * significant digits and a small exponent are computed exactly from
+    * the digits, everything else goes through <code>Double.parseDouble</code>.
+    * @return the number, NaN if the text is not a number
+    */
+   private static double parseNumber (CharSequence text, int from, int to) {
+      int i = from;
+      boolean negative = false;
+      if (i < to && (text.charAt (i) == '+' || text.charAt (i) == '-'))
+         negative = text.charAt (i++) == '-';
+      long mantissa = 0;
+      int digits = 0, scale = 0, exponent = 0;
+      boolean seen = false, point = false, simple = true;
+      for (; i < to; i++) {
+         char c = text.charAt (i);
+         if (c >= '0' && c <= '9') {
+            seen = true;
+            if (point)
+               scale--;
+            if (mantissa == 0 && c == '0')
+               continue;
+            if (++digits > 15) {
+               simple = false;
+               break;
+            }
+            mantissa = 10 * mantissa + (c - '0');
+         } else if (c == '.' && !point) {
+            point = true;
+         } else {
+            break;
+         }
+      }
+      if (simple && seen && i < to && isExponentMark (text.charAt (i))) {
+         int j = i + 1;
+         boolean negativeExponent = false;
+         if (j < to && (text.charAt (j) == '+' || text.charAt (j) == '-'))
+            negativeExponent = text.charAt (j++) == '-';
+         int k = j;
+         for (; k < to && k - j < 4; k++) {
+            char c = text.charAt (k);
+            if (c < '0' || c > '9')
+               break;
+            exponent = 10 * exponent + (c - '0');
+         }
+         if (k > j) {
+            i = k;
+            if (negativeExponent)
+               exponent = -exponent;
+         }
+      }
+      if (simple && seen && i == to) {
+         int e = scale + exponent;
+         if (mantissa == 0)
+            return negative ? -0. : 0.;
+         if (e >= 0 && e < POWERS.length) {
+            double value = mantissa * POWERS[e];
+            return negative ? -value : value;
+         }
+         if (e < 0 && -e < POWERS.length) {
+            double value = mantissa / POWERS[-e];
+            return negative ? -value : value;
+         }
+      }
+      try {
+         return Double.parseDouble (text.subSequence (from, to).toString());
+      } catch (NumberFormatException e) {
+         return Double.NaN;
+      }
+   }
+
+   /** Main method for benchmarking against <code>Quaternion.valueOf</code>.
+    * @param arg command line parameters: number of rows (optional)
+    */
+   public static void main (String[] arg) {
+      int rows = arg.length > 0 ? Integer.parseInt (arg[0]) : 1000000;
+      Random random = new Random (28);
+      for (int digits : new int[] { 3, -1 }) {
+         String[] column = new String[rows];
+         for (int r = 0; r < rows; r++) {
+            double[] v = new double[4];
+            for (int c = 0; c < 4; c++) {
+               // valueOf splits "1.0E-4" at the exponent sign, keep clear of it
+               v[c] = (random.nextDouble() * 99. + 1.) * (random.nextBoolean() ? 1. : -1.);
+               if (digits >= 0)
+                  v[c] = Math.round (v[c] * 1000.) / 1000.;
+            }
+            column[r] = new Quaternion (v[0], v[1], v[2], v[3]).toString();
+         }
+         System.out.println (digits >= 0 ? "three decimals:" : "full precision:");
+         for (int round = 0; round < 3; round++) {
+            long start = System.nanoTime();
+            Quaternion[] single = new Quaternion[rows];
+            for (int r = 0; r < rows; r++)
+               single[r] = Quaternion.valueOf (column[r]);
+            long middle = System.nanoTime();
+            Result bulk = parse (column);
+            long end = System.nanoTime();
+            System.out.printf ("  valueOf %.1f ns/row, bulk %.1f ns/row, errors %d, agree %b%n",
+               (middle - start) / (double) rows, (end - middle) / (double) rows,
+               bulk.errors().size(), bulk.get (rows - 1).equals (single[rows - 1]));
+         }
+      }
+   }
+}
+// end of file
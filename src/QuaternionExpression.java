@@ -0,0 +1,451 @@
+import java.util.*;
+
+/** Expressions over quaternion variables. An expression is built from
+ * the operations of <code>Quaternion</code> and compiled into a
+ * <code>Kernel</code> that evaluates it row by row over packed columns
+ * without creating intermediate quaternions.
+ * <p>
+ * A column is a packed array of quaternions: row <code>n</code> occupies
+ * the elements <code>4*n .. 4*n+3</code> (real part, parts i, j and k).
+ */
+public final class QuaternionExpression {
+
+   private static final int VARIABLE = 0;
+   private static final int CONSTANT = 1;
+   private static final int PLUS = 2;
+   private static final int MINUS = 3;
+   private static final int TIMES = 4;
+   private static final int SCALE = 5;
+   private static final int CONJUGATE = 6;
+   private static final int OPPOSITE = 7;
+   private static final int INVERSE = 8;
+   private static final int DIVIDE_LEFT = 9;
+   private static final int DIVIDE_RIGHT = 10;
+   private static final int DOT_MULT = 11;
+
+   private final int op;
+   private final QuaternionExpression left, right;
+   private final int variable;
+   private final double coefficient;
+   private final Quaternion constant;
+
+   private QuaternionExpression (int op, QuaternionExpression left,
+         QuaternionExpression right, int variable, double coefficient,
+         Quaternion constant) {
+      this.op = op;
+      this.left = left;
+      this.right = right;
+      this.variable = variable;
+      this.coefficient = coefficient;
+      this.constant = constant;
+   }
+
+   private QuaternionExpression (int op, QuaternionExpression left,
+         QuaternionExpression right) {
+      this (op, left, right, -1, 0., null);
+   }
+
+   /** Variable of the expression, bound to a column at evaluation time.
+    * @param index number of the column (argument) this variable reads
+    * @return expression consisting of the variable
+    */
+   public static QuaternionExpression variable (int index) {
+      if (index < 0)
+         throw new IllegalArgumentException ("Variable index must not be negative: " + index);
+      return new QuaternionExpression (VARIABLE, null, null, index, 0., null);
+   }
+
+   /** Constant of the expression.
+    * @param q value of the constant
+    * @return expression consisting of the constant
+    */
+   public static QuaternionExpression constant (Quaternion q) {
+      if (q == null)
+         throw new IllegalArgumentException ("Constant must not be null.");
+      return new QuaternionExpression (CONSTANT, null, null, -1, 0., q);
+   }
+
+   /** Sum of expressions.
+    * @param e addend
+    * @return expression <code>this+e</code>
+    */
+   public QuaternionExpression plus (QuaternionExpression e) {
+      return new QuaternionExpression (PLUS, this, e);
+   }
+
+   /** Difference of expressions.
+    * @param e subtrahend
+    * @return expression <code>this-e</code>
+    */
+   public QuaternionExpression minus (QuaternionExpression e) {
+      return new QuaternionExpression (MINUS, this, e);
+   }
+
+   /** Product of expressions.
+    * @param e factor
+    * @return expression <code>this*e</code>
+    */
+   public QuaternionExpression times (QuaternionExpression e) {
+      return new QuaternionExpression (TIMES, this, e);
+   }
+
+   /** Multiplication by a coefficient.
+    * @param r coefficient
+    * @return expression <code>this*r</code>
+    */
+   public QuaternionExpression times (double r) {
+      return new QuaternionExpression (SCALE, this, null, -1, r, null);
+   }
+
+   /** Conjugate of the expression.
+    * @return expression <code>conjugate(this)</code>
+    */
+   public QuaternionExpression conjugate() {
+      return new QuaternionExpression (CONJUGATE, this, null);
+   }
+
+   /** Opposite of the expression.
+    * @return expression <code>-this</code>
+    */
+   public QuaternionExpression opposite() {
+      return new QuaternionExpression (OPPOSITE, this, null);
+   }
+
+   /** Inverse of the expression.
+    * @return expression <code>1/this</code>
+    */
+   public QuaternionExpression inverse() {
+      return new QuaternionExpression (INVERSE, this, null);
+   }
+
+   /** Left quotient of expressions.
+    * @param e (left) divisor
+    * @return expression <code>inverse(e)*this</code>
+    */
+   public QuaternionExpression divideByLeft (QuaternionExpression e) {
+      return new QuaternionExpression (DIVIDE_LEFT, this, e);
+   }
+
+   /** Right quotient of expressions.
+    * @param e (right) divisor
+    * @return expression <code>this*inverse(e)</code>
+    */
+   public QuaternionExpression divideByRight (QuaternionExpression e) {
+      return new QuaternionExpression (DIVIDE_RIGHT, this, e);
+   }
+
+   /** Dot product of expressions.
+    * @param e factor
+    * @return expression <code>dotMult(this, e)</code>
+    */
+   public QuaternionExpression dotMult (QuaternionExpression e) {
+      return new QuaternionExpression (DOT_MULT, this, e);
+   }
+
+   /** Evaluation by chained calls of the <code>Quaternion</code> methods.
+    * Every intermediate result is a new object.
+    * @param args values of the variables
+    * @return value of the expression
+    */
+   public Quaternion evaluate (Quaternion... args) {
+      switch (op) {
+         case VARIABLE:
+            if (variable >= args.length)
+               throw new IllegalArgumentException ("No value for variable x" + variable);
+            return args[variable];
+         case CONSTANT: return constant;
+         case PLUS: return left.evaluate (args).plus (right.evaluate (args));
+         case MINUS: return left.evaluate (args).minus (right.evaluate (args));
+         case TIMES: return left.evaluate (args).times (right.evaluate (args));
+         case SCALE: return left.evaluate (args).times (coefficient);
+         case CONJUGATE: return left.evaluate (args).conjugate();
+         case OPPOSITE: return left.evaluate (args).opposite();
+         case INVERSE: return left.evaluate (args).inverse();
+         case DIVIDE_LEFT: return left.evaluate (args).divideByLeft (right.evaluate (args));
+         case DIVIDE_RIGHT: return left.evaluate (args).divideByRight (right.evaluate (args));
+         case DOT_MULT: return left.evaluate (args).dotMult (right.evaluate (args));
+         default: throw new IllegalStateException ("Unknown operation " + op);
+      }
+   }
+
+   /** Compilation of the expression into a kernel. Subexpressions used
+    * several times (the same object) are computed once per row.
+    * @return kernel evaluating <code>this</code>
+    */
+   public Kernel compile() {
+      Compiler c = new Compiler();
+      int result = c.emit (this);
+      return new Kernel (Arrays.copyOf (c.code, c.size), c.coefficients.clone(),
+         Arrays.copyOf (c.registers, c.slots * 4), result, c.columns);
+   }
+
+   /** Conversion of the expression to the string.
+    * @return the expression as a chain of method calls, for example
+    * "x0.times(x1).plus(x2.conjugate())"
+    */
+   @Override
+   public String toString() {
+      switch (op) {
+         case VARIABLE: return "x" + variable;
+         case CONSTANT: return "(" + constant + ")";
+         case SCALE: return left + ".times(" + coefficient + ")";
+         case CONJUGATE: return left + ".conjugate()";
+         case OPPOSITE: return left + ".opposite()";
+         case INVERSE: return left + ".inverse()";
+         case PLUS: return left + ".plus(" + right + ")";
+         case MINUS: return left + ".minus(" + right + ")";
+         case TIMES: return left + ".times(" + right + ")";
+         case DIVIDE_LEFT: return left + ".divideByLeft(" + right + ")";
+         case DIVIDE_RIGHT: return left + ".divideByRight(" + right + ")";
+         case DOT_MULT: return left + ".dotMult(" + right + ")";
+         default: throw new IllegalStateException ("Unknown operation " + op);
+      }
+   }
+
+   /** Translation of the expression tree into a flat program. Every node
+    * gets its own register of four doubles, constants are stored in the
+    * initial register values.
+    */
+   private static final class Compiler {
+      int[] code = new int[32];
+      double[] coefficients = new double[8];
+      double[] registers = new double[32];
+      int size, slots, columns;
+      final Map<QuaternionExpression, Integer> done =
+         new IdentityHashMap<QuaternionExpression, Integer>();
+
+      int emit (QuaternionExpression e) {
+         Integer known = done.get (e);
+         if (known != null)
+            return known;
+         int a = e.left == null ? -1 : emit (e.left);
+         int b = e.right == null ? -1 : emit (e.right);
+         int d = 4 * slots++;
+         if (registers.length < d + 4)
+            registers = Arrays.copyOf (registers, 2 * registers.length);
+         if (e.op == CONSTANT) {
+            registers[d] = e.constant.getRpart();
+            registers[d + 1] = e.constant.getIpart();
+            registers[d + 2] = e.constant.getJpart();
+            registers[d + 3] = e.constant.getKpart();
+         } else {
+            if (e.op == VARIABLE) {
+               a = e.variable;
+               columns = Math.max (columns, e.variable + 1);
+            }
+            if (code.length < size + 4) {
+               code = Arrays.copyOf (code, 2 * code.length);
+               coefficients = Arrays.copyOf (coefficients, code.length / 4);
+            }
+            coefficients[size / 4] = e.coefficient;
+            code[size++] = e.op;
+            code[size++] = d;
+            code[size++] = a;
+            code[size++] = b;
+         }
+         done.put (e, d);
+         return d;
+      }
+   }
+
+   /** Compiled expression. Evaluation does not allocate per row, the
+    * only temporary storage is one register array per call, so a kernel
+    * may be shared between threads.
+    */
+   public static final class Kernel {
+
+      private final int[] code;
+      private final double[] coefficients;
+      private final double[] initial;
+      private final int result;
+      private final int columns;
+
+      private Kernel (int[] code, double[] coefficients, double[] initial,
+            int result, int columns) {
+         this.code = code;
+         this.coefficients = coefficients;
+         this.initial = initial;
+         this.result = result;
+         this.columns = columns;
+      }
+
+      /** Number of columns the kernel reads.
+       * @return one more than the largest variable index
+       */
+      public int columnCount() {
+         return columns;
+      }
+
+      /** Evaluation over all rows of the output.
+       * @param in packed input columns, one per variable
+       * @param out packed output column, its length defines the number of rows
+       */
+      public void evaluate (double[][] in, double[] out) {
+         evaluate (in, out, 0, out.length / 4);
+      }
+
+      /** Evaluation over a range of rows.
+       * @throws IllegalArgumentException if a column is missing or too short
+       * @throws RuntimeException if a divisor is zero
+       * @param in packed input columns, one per variable
+       * @param out packed output column
+       * @param from first row (inclusive)
+       * @param to last row (exclusive)
+       */
+      public void evaluate (double[][] in, double[] out, int from, int to) {
+         if (from < 0 || from > to || out.length < 4 * to)
+            throw new IllegalArgumentException ("Bad row range " + from + ".." + to);
+         if (in.length < columns)
+            throw new IllegalArgumentException ("Expected " + columns + " columns, got " + in.length);
+         for (int c = 0; c < columns; c++)
+            if (in[c] == null || in[c].length < 4 * to)
+               throw new IllegalArgumentException ("Column " + c + " is shorter than " + to + " rows");
+         final int[] code = this.code;
+         final double[] reg = initial.clone();
+         for (int row = from; row < to; row++) {
+            final int base = 4 * row;
+            for (int pc = 0; pc < code.length; pc += 4) {
+               final int d = code[pc + 1], a = code[pc + 2], b = code[pc + 3];
+               switch (code[pc]) {
+                  case VARIABLE: {
+                     final double[] col = in[a];
+                     reg[d] = col[base];
+                     reg[d + 1] = col[base + 1];
+                     reg[d + 2] = col[base + 2];
+                     reg[d + 3] = col[base + 3];
+                     break;
+                  }
+                  case PLUS:
+                     reg[d] = reg[a] + reg[b];
+                     reg[d + 1] = reg[a + 1] + reg[b + 1];
+                     reg[d + 2] = reg[a + 2] + reg[b + 2];
+                     reg[d + 3] = reg[a + 3] + reg[b + 3];
+                     break;
+                  case MINUS:
+                     reg[d] = reg[a] - reg[b];
+                     reg[d + 1] = reg[a + 1] - reg[b + 1];
+                     reg[d + 2] = reg[a + 2] - reg[b + 2];
+                     reg[d + 3] = reg[a + 3] - reg[b + 3];
+                     break;
+                  case TIMES:
+                     multiply (reg, d, reg[a], reg[a + 1], reg[a + 2], reg[a + 3],
+                        reg[b], reg[b + 1], reg[b + 2], reg[b + 3]);
+                     break;
+                  case SCALE: {
+                     final double r = coefficients[pc / 4];
+                     reg[d] = reg[a] * r;
+                     reg[d + 1] = reg[a + 1] * r;
+                     reg[d + 2] = reg[a + 2] * r;
+                     reg[d + 3] = reg[a + 3] * r;
+                     break;
+                  }
+                  case CONJUGATE:
+                     reg[d] = reg[a];
+                     reg[d + 1] = -reg[a + 1];
+                     reg[d + 2] = -reg[a + 2];
+                     reg[d + 3] = -reg[a + 3];
+                     break;
+                  case OPPOSITE:
+                     reg[d] = -reg[a];
+                     reg[d + 1] = -reg[a + 1];
+                     reg[d + 2] = -reg[a + 2];
+                     reg[d + 3] = -reg[a + 3];
+                     break;
+                  case INVERSE:
+                     invert (reg, d, a);
+                     break;
+                  case DIVIDE_LEFT:
+                     invert (reg, d, b);
+                     multiply (reg, d, reg[d], reg[d + 1], reg[d + 2], reg[d + 3],
+                        reg[a], reg[a + 1], reg[a + 2], reg[a + 3]);
+                     break;
+                  case DIVIDE_RIGHT:
+                     invert (reg, d, b);
+                     multiply (reg, d, reg[a], reg[a + 1], reg[a + 2], reg[a + 3],
+                        reg[d], reg[d + 1], reg[d + 2], reg[d + 3]);
+                     break;
+                  case DOT_MULT:
+                     // (p*conjugate(q) + q*conjugate(p))/2 has no imaginary part
+                     reg[d] = reg[a] * reg[b] + reg[a + 1] * reg[b + 1]
+                        + reg[a + 2] * reg[b + 2] + reg[a + 3] * reg[b + 3];
+                     reg[d + 1] = 0.;
+                     reg[d + 2] = 0.;
+                     reg[d + 3] = 0.;
+                     break;
+                  default:
+                     throw new IllegalStateException ("Unknown operation " + code[pc]);
+               }
+            }
+            out[base] = reg[result];
+            out[base + 1] = reg[result + 1];
+            out[base + 2] = reg[result + 2];
+            out[base + 3] = reg[result + 3];
+         }
+      }
+
+      /** Hamilton product (a0+a1i+a2j+a3k)*(b0+b1i+b2j+b3k) into register d. */
+      private static void multiply (double[] reg, int d,
+            double a0, double a1, double a2, double a3,
+            double b0, double b1, double b2, double b3) {
+         reg[d] = a0 * b0 - a1 * b1 - a2 * b2 - a3 * b3;
+         reg[d + 1] = a0 * b1 + a1 * b0 + a2 * b3 - a3 * b2;
+         reg[d + 2] = a0 * b2 - a1 * b3 + a2 * b0 + a3 * b1;
+         reg[d + 3] = a0 * b3 + a1 * b2 - a2 * b1 + a3 * b0;
+      }
+
+      /** Inverse of register a into register d, same rules as
+       * <code>Quaternion.inverse</code>. */
+      private static void invert (double[] reg, int d, int a) {
+         final double epsilon = 0.00000001;
+         final double a0 = reg[a], a1 = reg[a + 1], a2 = reg[a + 2], a3 = reg[a + 3];
+         if (Math.abs (a0) < epsilon && Math.abs (a1) < epsilon &&
+               Math.abs (a2) < epsilon && Math.abs (a3) < epsilon)
+            throw new RuntimeException ("Division by zero is not allowed.");
+         final double squareNorm = a0 * a0 + a1 * a1 + a2 * a2 + a3 * a3;
+         reg[d] = a0 / squareNorm;
+         reg[d + 1] = -a1 / squareNorm;
+         reg[d + 2] = -a2 / squareNorm;
+         reg[d + 3] = -a3 / squareNorm;
+      }
+   }
+
+   /** Main method for benchmarking the kernel against chained calls.
+    * @param arg command line parameters: number of rows (optional)
+    */
+   public static void main (String[] arg) {
+      int rows = arg.length > 0 ? Integer.parseInt (arg[0]) : 1000000;
+      QuaternionExpression a = variable (0), b = variable (1),
+         c = variable (2), d = variable (3);
+      QuaternionExpression e = a.times (b).plus (c.conjugate()).divideByRight (d);
+      Kernel kernel = e.compile();
+      System.out.println ("expression: " + e);
+
+      Random random = new Random (4);
+      double[][] columns = new double[4][4 * rows];
+      Quaternion[][] objects = new Quaternion[4][rows];
+      for (int c0 = 0; c0 < 4; c0++) {
+         for (int i = 0; i < 4 * rows; i++)
+            columns[c0][i] = random.nextDouble() * 2. - 1.;
+         for (int r = 0; r < rows; r++)
+            objects[c0][r] = new Quaternion (columns[c0][4 * r], columns[c0][4 * r + 1],
+               columns[c0][4 * r + 2], columns[c0][4 * r + 3]);
+      }
+      double[] out = new double[4 * rows];
+      Quaternion[] chained = new Quaternion[rows];
+
+      for (int round = 0; round < 5; round++) {
+         long start = System.nanoTime();
+         for (int r = 0; r < rows; r++)
+            chained[r] = e.evaluate (objects[0][r], objects[1][r], objects[2][r], objects[3][r]);
+         long middle = System.nanoTime();
+         kernel.evaluate (columns, out);
+         long end = System.nanoTime();
+         System.out.printf ("round %d: chained %.1f ns/row, kernel %.1f ns/row%n", round,
+            (middle - start) / (double) rows, (end - middle) / (double) rows);
+      }
+      Quaternion last = new Quaternion (out[4 * rows - 4], out[4 * rows - 3],
+         out[4 * rows - 2], out[4 * rows - 1]);
+      System.out.println ("results agree: " + last.equals (chained[rows - 1]));
+   }
+}
+// end of file
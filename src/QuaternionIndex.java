@@ -0,0 +1,499 @@
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.stream.*;
+
+/** Index of rotations for nearest-orientation queries. The rotations are
+ * given as quaternions, normalized on insertion, and compared by the
+ * angle of the rotation between them:
+ *     angle(p, q) = 2*acos(|p.q|)
+ * so q and -q (the same rotation) have distance zero.
+ * <p>
+ * The index is a vantage-point tree stored in flat arrays: the node for
+ * positions <code>lo .. hi-1</code> keeps its vantage point at
+ * <code>lo</code>, points closer than the node radius at
+ * <code>lo+1 .. mid-1</code> and the others at <code>mid .. hi-1</code>.
+ * Results refer to rows by their position in the input.
+ */
+public final class QuaternionIndex {
+
+   /** ranges smaller than this are built in the current thread */
+   private static final int PARALLEL_THRESHOLD = 1 << 14;
+
+   private static final int MAGIC = 0x51494458; // "QIDX"
+   private static final int VERSION = 1;
+
+   private final double[] points;
+   private final int[] ids;
+   private final double[] radius;
+
+   private QuaternionIndex (double[] points, int[] ids, double[] radius) {
+      this.points = points;
+      this.ids = ids;
+      this.radius = radius;
+   }
+
+   /** Neighbours found by a query, ordered by increasing angle. */
+   public static final class Neighbours {
+      private final int[] ids;
+      private final double[] angles;
+
+      private Neighbours (int[] ids, double[] angles) {
+         this.ids = ids;
+         this.angles = angles;
+      }
+
+      /** Number of neighbours.
+       * @return number of neighbours
+       */
+      public int size() {
+         return ids.length;
+      }
+
+      /** Row of a neighbour.
+       * @param i rank of the neighbour (0 is the closest)
+       * @return input row of the neighbour
+       */
+      public int id (int i) {
+         return ids[i];
+      }
+
+      /** Angle to a neighbour.
+       * @param i rank of the neighbour (0 is the closest)
+       * @return rotation angle between the query and the neighbour (radians)
+       */
+      public double angle (int i) {
+         return angles[i];
+      }
+
+      /** Rows of all neighbours.
+       * @return input rows, closest first
+       */
+      public int[] ids() {
+         return ids.clone();
+      }
+   }
+
+   /** Angle of the rotation between two orientations.
+    * @throws IllegalArgumentException if p or q is zero
+    * @param p first orientation
+    * @param q second orientation
+    * @return angle in radians, between 0 and pi
+    */
+   public static double angle (Quaternion p, Quaternion q) {
+      double[] a = unit (p.getRpart(), p.getIpart(), p.getJpart(), p.getKpart());
+      double[] b = unit (q.getRpart(), q.getIpart(), q.getJpart(), q.getKpart());
+      return angle (a, 0, b, 0);
+   }
+
+   /** Angle between two unit quaternions stored at offsets of packed arrays. */
+   private static double angle (double[] a, int i, double[] b, int j) {
+      double dot = Math.abs (a[i] * b[j] + a[i + 1] * b[j + 1]
+         + a[i + 2] * b[j + 2] + a[i + 3] * b[j + 3]);
+      return 2. * Math.acos (Math.min (dot, 1.));
+   }
+
+   private static double[] unit (double a, double b, double c, double d) {
+      double norm = Math.sqrt (a * a + b * b + c * c + d * d);
+      if (!(norm > 0.) || Double.isInfinite (norm))
+         throw new IllegalArgumentException ("Orientation must be a finite non-zero quaternion: "
+            + new Quaternion (a, b, c, d));
+      return new double[] { a / norm, b / norm, c / norm, d / norm };
+   }
+
+   /** Bulk build of the index from quaternions.
+    * @param orientations rotations to index, row n is orientations[n]
+    * @return index of the rotations
+    */
+   public static QuaternionIndex build (Quaternion[] orientations) {
+      double[] packed = new double[4 * orientations.length];
+      for (int n = 0; n < orientations.length; n++) {
+         Quaternion q = orientations[n];
+         packed[4 * n] = q.getRpart();
+         packed[4 * n + 1] = q.getIpart();
+         packed[4 * n + 2] = q.getJpart();
+         packed[4 * n + 3] = q.getKpart();
+      }
+      return build (packed);
+   }
+
+   /** Bulk build of the index from packed quaternions. Large subtrees are
+    * built in parallel on the common fork/join pool.
+    * @throws IllegalArgumentException if the array does not hold whole
+    *     quaternions or some quaternion is zero
+    * @param packed rotations to index, row n at <code>4*n .. 4*n+3</code>
+    * @return index of the rotations
+    */
+   public static QuaternionIndex build (double[] packed) {
+      if (packed.length % 4 != 0)
+         throw new IllegalArgumentException ("Packed length must be a multiple of 4: " + packed.length);
+      final int n = packed.length / 4;
+      final double[] normalized = new double[packed.length];
+      for (int i = 0; i < n; i++) {
+         double[] u = unit (packed[4 * i], packed[4 * i + 1], packed[4 * i + 2], packed[4 * i + 3]);
+         System.arraycopy (u, 0, normalized, 4 * i, 4);
+      }
+      final int[] ids = new int[n];
+      for (int i = 0; i < n; i++)
+         ids[i] = i;
+      final double[] radius = new double[n];
+      ForkJoinPool.commonPool().invoke (new Build (normalized, ids, radius, new double[n], 0, n));
+      double[] points = new double[packed.length];
+      for (int i = 0; i < n; i++)
+         System.arraycopy (normalized, 4 * ids[i], points, 4 * i, 4);
+      return new QuaternionIndex (points, ids, radius);
+   }
+
+   /** Construction of the subtree for positions lo .. hi-1. */
+   private static final class Build extends RecursiveAction {
+      private static final long serialVersionUID = 1L;
+      private final double[] source, radius, dist;
+      private final int[] ids;
+      private final int lo, hi;
+
+      Build (double[] source, int[] ids, double[] radius, double[] dist, int lo, int hi) {
+         this.source = source;
+         this.ids = ids;
+         this.radius = radius;
+         this.dist = dist;
+         this.lo = lo;
+         this.hi = hi;
+      }
+
+      @Override
+      protected void compute() {
+         if (hi - lo < 2)
+            return;
+         swap (dist, ids, lo, lo + (hi - lo) / 2);
+         // the angle falls as |p.q| grows, so -|p.q| orders the points the
+         // same way and acos is only needed for the median
+         final int v = 4 * ids[lo];
+         for (int i = lo + 1; i < hi; i++) {
+            final int p = 4 * ids[i];
+            dist[i] = -Math.abs (source[v] * source[p] + source[v + 1] * source[p + 1]
+               + source[v + 2] * source[p + 2] + source[v + 3] * source[p + 3]);
+         }
+         final int mid = middle (lo, hi);
+         select (dist, ids, lo + 1, hi - 1, mid);
+         radius[lo] = 2. * Math.acos (Math.min (-dist[mid], 1.));
+         Build inside = new Build (source, ids, radius, dist, lo + 1, mid);
+         Build outside = new Build (source, ids, radius, dist, mid, hi);
+         if (hi - lo > PARALLEL_THRESHOLD) {
+            invokeAll (inside, outside);
+         } else {
+            inside.compute();
+            outside.compute();
+         }
+      }
+   }
+
+   /** First position of the outer subtree of the node at lo. */
+   private static int middle (int lo, int hi) {
+      return lo + 1 + (hi - lo - 1) / 2;
+   }
+
+   private static void swap (double[] key, int[] value, int i, int j) {
+      double k = key[i];
+      key[i] = key[j];
+      key[j] = k;
+      int v = value[i];
+      value[i] = value[j];
+      value[j] = v;
+   }
+
+   /** Partial sort of positions lo .. hi (inclusive) so that position
+    * target holds the element it would hold in sorted order. */
+   private static void select (double[] key, int[] value, int lo, int hi, int target) {
+      while (lo < hi) {
+         int p = partition (key, value, lo, hi);
+         if (p == target)
+            return;
+         if (p < target)
+            lo = p + 1;
+         else
+            hi = p - 1;
+      }
+   }
+
+   private static int partition (double[] key, int[] value, int lo, int hi) {
+      swap (key, value, lo + (hi - lo) / 2, hi);
+      double pivot = key[hi];
+      int store = lo;
+      for (int i = lo; i < hi; i++)
+         if (key[i] < pivot)
+            swap (key, value, i, store++);
+      swap (key, value, store, hi);
+      return store;
+   }
+
+   private static void sort (double[] key, int[] value, int lo, int hi) {
+      while (hi - lo > 16) {
+         int p = partition (key, value, lo, hi);
+         if (p - lo < hi - p) {
+            sort (key, value, lo, p - 1);
+            lo = p + 1;
+         } else {
+            sort (key, value, p + 1, hi);
+            hi = p - 1;
+         }
+      }
+      for (int i = lo + 1; i <= hi; i++)
+         for (int j = i; j > lo && key[j - 1] > key[j]; j--)
+            swap (key, value, j - 1, j);
+   }
+
+   /** Number of indexed rotations.
+    * @return number of rows
+    */
+   public int size() {
+      return ids.length;
+   }
+
+   /** Candidates collected during a search, bounded to k (a max-heap on
+    * the angle) or unbounded for radius queries. */
+   private static final class Hits {
+      final int limit;
+      double bound;
+      int[] ids;
+      double[] angles;
+      int count;
+
+      Hits (int limit, double bound) {
+         this.limit = limit;
+         this.bound = bound;
+         int capacity = limit == Integer.MAX_VALUE ? 16 : limit;
+         ids = new int[capacity];
+         angles = new double[capacity];
+      }
+
+      void offer (int id, double angle) {
+         if (angle > bound)
+            return;
+         if (limit == Integer.MAX_VALUE) {
+            if (count == ids.length) {
+               ids = Arrays.copyOf (ids, 2 * count);
+               angles = Arrays.copyOf (angles, 2 * count);
+            }
+            ids[count] = id;
+            angles[count++] = angle;
+            return;
+         }
+         if (count < limit) {
+            int i = count++;
+            while (i > 0 && angles[(i - 1) / 2] < angle) {
+               ids[i] = ids[(i - 1) / 2];
+               angles[i] = angles[(i - 1) / 2];
+               i = (i - 1) / 2;
+            }
+            ids[i] = id;
+            angles[i] = angle;
+         } else {
+            int i = 0;
+            while (2 * i + 1 < count) {
+               int c = 2 * i + 1;
+               if (c + 1 < count && angles[c + 1] > angles[c])
+                  c++;
+               if (angles[c] <= angle)
+                  break;
+               ids[i] = ids[c];
+               angles[i] = angles[c];
+               i = c;
+            }
+            ids[i] = id;
+            angles[i] = angle;
+         }
+         if (count == limit)
+            bound = angles[0];
+      }
+
+      Neighbours result() {
+         int[] id = Arrays.copyOf (ids, count);
+         double[] angle = Arrays.copyOf (angles, count);
+         sort (angle, id, 0, count - 1);
+         return new Neighbours (id, angle);
+      }
+   }
+
+   private void search (double[] q, int lo, int hi, Hits hits) {
+      while (lo < hi) {
+         double d = angle (q, 0, points, 4 * lo);
+         hits.offer (ids[lo], d);
+         int mid = middle (lo, hi);
+         double mu = radius[lo];
+         // the side holding the query first, the other one only if the
+         // current bound still reaches over the node radius
+         if (d < mu) {
+            search (q, lo + 1, mid, hits);
+            if (d + hits.bound < mu)
+               return;
+            lo = mid;
+         } else {
+            search (q, mid, hi, hits);
+            if (d - hits.bound > mu)
+               return;
+            lo = lo + 1;
+            hi = mid;
+         }
+      }
+   }
+
+   /** The k nearest rotations.
+    * @throws IllegalArgumentException if k is negative or q is zero
+    * @param q query orientation
+    * @param k number of neighbours
+    * @return at most k closest rows, closest first
+    */
+   public Neighbours nearest (Quaternion q, int k) {
+      return nearestTo (unit (q.getRpart(), q.getIpart(), q.getJpart(), q.getKpart()), k);
+   }
+
+   private Neighbours nearestTo (double[] unit, int k) {
+      if (k < 0)
+         throw new IllegalArgumentException ("Number of neighbours must not be negative: " + k);
+      Hits hits = new Hits (Math.min (k, size()), Double.POSITIVE_INFINITY);
+      if (k > 0)
+         search (unit, 0, size(), hits);
+      return hits.result();
+   }
+
+   /** Rotations within the given angle.
+    * @throws IllegalArgumentException if q is zero
+    * @param q query orientation
+    * @param angle largest accepted angle (radians)
+    * @return all rows within the angle, closest first
+    */
+   public Neighbours withinAngle (Quaternion q, double angle) {
+      return withinAngleOf (unit (q.getRpart(), q.getIpart(), q.getJpart(), q.getKpart()), angle);
+   }
+
+   private Neighbours withinAngleOf (double[] unit, double angle) {
+      Hits hits = new Hits (Integer.MAX_VALUE, angle);
+      search (unit, 0, size(), hits);
+      return hits.result();
+   }
+
+   /** The k nearest rotations for many queries, answered in parallel.
+    * @param queries packed query orientations
+    * @param k number of neighbours
+    * @return neighbours of query n at position n
+    */
+   public Neighbours[] nearest (double[] queries, final int k) {
+      final double[][] units = units (queries);
+      return IntStream.range (0, units.length).parallel()
+         .mapToObj (n -> nearestTo (units[n], k)).toArray (Neighbours[]::new);
+   }
+
+   /** Rotations within the given angle for many queries, answered in parallel.
+    * @param queries packed query orientations
+    * @param angle largest accepted angle (radians)
+    * @return neighbours of query n at position n
+    */
+   public Neighbours[] withinAngle (double[] queries, final double angle) {
+      final double[][] units = units (queries);
+      return IntStream.range (0, units.length).parallel()
+         .mapToObj (n -> withinAngleOf (units[n], angle)).toArray (Neighbours[]::new);
+   }
+
+   private static double[][] units (double[] packed) {
+      if (packed.length % 4 != 0)
+         throw new IllegalArgumentException ("Packed length must be a multiple of 4: " + packed.length);
+      double[][] units = new double[packed.length / 4][];
+      for (int n = 0; n < units.length; n++)
+         units[n] = unit (packed[4 * n], packed[4 * n + 1], packed[4 * n + 2], packed[4 * n + 3]);
+      return units;
+   }
+
+   /** Saving of the index into a file.
+    * @param fileName name of the file
+    * @throws IOException if the file cannot be written
+    */
+   public void save (String fileName) throws IOException {
+      try (DataOutputStream out = new DataOutputStream (
+            new BufferedOutputStream (new FileOutputStream (fileName)))) {
+         out.writeInt (MAGIC);
+         out.writeInt (VERSION);
+         out.writeInt (size());
+         for (int i = 0; i < size(); i++) {
+            out.writeInt (ids[i]);
+            out.writeDouble (radius[i]);
+            for (int c = 0; c < 4; c++)
+               out.writeDouble (points[4 * i + c]);
+         }
+      }
+   }
+
+   /** Loading of an index saved by the <code>save</code> method.
+    * @param fileName name of the file
+    * @return the saved index
+    * @throws IOException if the file cannot be read or is not an index file
+    */
+   public static QuaternionIndex load (String fileName) throws IOException {
+      try (DataInputStream in = new DataInputStream (
+            new BufferedInputStream (new FileInputStream (fileName)))) {
+         if (in.readInt() != MAGIC)
+            throw new IOException (fileName + " is not a quaternion index file");
+         int version = in.readInt();
+         if (version != VERSION)
+            throw new IOException ("Unsupported index version " + version + " in " + fileName);
+         int n = in.readInt();
+         if (n < 0)
+            throw new IOException ("Corrupt index size " + n + " in " + fileName);
+         int[] ids = new int[n];
+         double[] radius = new double[n];
+         double[] points = new double[4 * n];
+         for (int i = 0; i < n; i++) {
+            ids[i] = in.readInt();
+            radius[i] = in.readDouble();
+            for (int c = 0; c < 4; c++)
+               points[4 * i + c] = in.readDouble();
+         }
+         return new QuaternionIndex (points, ids, radius);
+      }
+   }
+
+   /** Main method for benchmarking the index against a linear scan.
+    * @param arg command line parameters: number of rotations, number of
+    *     queries and k (optional)
+    */
+   public static void main (String[] arg) {
+      int n = arg.length > 0 ? Integer.parseInt (arg[0]) : 1000000;
+      int queries = arg.length > 1 ? Integer.parseInt (arg[1]) : 1000;
+      int k = arg.length > 2 ? Integer.parseInt (arg[2]) : 10;
+      Random random = new Random (27);
+      double[] packed = new double[4 * n];
+      for (int i = 0; i < packed.length; i++)
+         packed[i] = random.nextGaussian();
+      double[] query = new double[4 * queries];
+      for (int i = 0; i < query.length; i++)
+         query[i] = random.nextGaussian();
+
+      long start = System.nanoTime();
+      QuaternionIndex index = build (packed);
+      System.out.printf ("build: %d rotations in %.1f ms%n", n, (System.nanoTime() - start) / 1e6);
+
+      start = System.nanoTime();
+      Neighbours[] found = index.nearest (query, k);
+      long indexTime = System.nanoTime() - start;
+
+      start = System.nanoTime();
+      double[][] exact = new double[queries][];
+      for (int q = 0; q < queries; q++) {
+         double[] u = unit (query[4 * q], query[4 * q + 1], query[4 * q + 2], query[4 * q + 3]);
+         Hits hits = new Hits (k, Double.POSITIVE_INFINITY);
+         for (int i = 0; i < n; i++)
+            hits.offer (i, angle (u, 0, index.points, 4 * i));
+         exact[q] = hits.result().angles;
+      }
+      long bruteTime = System.nanoTime() - start;
+
+      int matched = 0;
+      for (int q = 0; q < queries; q++)
+         for (int i = 0; i < found[q].size(); i++)
+            if (found[q].angle (i) <= exact[q][exact[q].length - 1])
+               matched++;
+      System.out.printf ("index (parallel): %.1f us/query%n", indexTime / 1e3 / queries);
+      System.out.printf ("linear scan: %.1f us/query%n", bruteTime / 1e3 / queries);
+      System.out.printf ("recall: %.4f%n", matched / (double) (queries * Math.min (k, n)));
+   }
+}
+// end of file
@@ -0,0 +1,194 @@
+import java.util.*;
+import java.util.function.Consumer;
+import java.util.stream.*;
+
+/** Generator of uniformly distributed random rotations (unit quaternions),
+ * using Shoemake's method: for u1, u2, u3 uniform in [0, 1)
+ *     q = sqrt(u1)*cos(2*pi*u3) + sqrt(1-u1)*sin(2*pi*u2)i
+ *         + sqrt(1-u1)*cos(2*pi*u2)j + sqrt(u1)*sin(2*pi*u3)k
+ * Packed arrays hold row n at the elements <code>4*n .. 4*n+3</code>.
+ * A generator is not thread-safe; use <code>split</code> to give every
+ * thread its own one, or <code>parallelFill</code>.
+ */
+public final class QuaternionRandom {
+
+   /** rows generated from one seed by <code>parallelFill</code> */
+   private static final int CHUNK = 1 << 16;
+
+   private static final double TWO_PI = 2. * Math.PI;
+
+   private final SplittableRandom random;
+   private final double[] buffer = new double[4];
+
+   /** Constructor of a generator with an unpredictable seed. */
+   public QuaternionRandom() {
+      this (new SplittableRandom());
+   }
+
+   /** Constructor of a reproducible generator.
+    * @param seed initial seed, equal seeds give equal sequences
+    */
+   public QuaternionRandom (long seed) {
+      this (new SplittableRandom (seed));
+   }
+
+   private QuaternionRandom (SplittableRandom random) {
+      this.random = random;
+   }
+
+   /** New generator, statistically independent from this one. Intended
+    * for handing out to other threads.
+    * @return a new generator
+    */
+   public QuaternionRandom split() {
+      return new QuaternionRandom (random.split());
+   }
+
+   /** Random rotation.
+    * @return uniformly distributed unit quaternion
+    */
+   public Quaternion nextRotation() {
+      rotation (random, buffer, 0);
+      return new Quaternion (buffer[0], buffer[1], buffer[2], buffer[3]);
+   }
+
+   /** Random rotations into a packed array.
+    * @param packed output
+    * @param from first row (inclusive)
+    * @param to last row (exclusive)
+    */
+   public void fill (double[] packed, int from, int to) {
+      if (from < 0 || from > to || 4 * to > packed.length)
+         throw new IllegalArgumentException ("Bad row range " + from + ".." + to);
+      for (int n = from; n < to; n++)
+         rotation (random, packed, 4 * n);
+   }
+
+   /** Random rotations into a whole packed array, filled in parallel.
+    * The array is cut into fixed chunks and every chunk gets a seed of
+    * its own derived from the given seed, so the result depends only on
+    * the seed and not on the number of threads or their scheduling.
+    * @param packed output, its length must be a multiple of 4
+    * @param seed seed of the whole array
+    */
+   public static void parallelFill (final double[] packed, long seed) {
+      if (packed.length % 4 != 0)
+         throw new IllegalArgumentException ("Packed length must be a multiple of 4: " + packed.length);
+      final int rows = packed.length / 4;
+      final int chunks = (rows + CHUNK - 1) / CHUNK;
+      final long[] seeds = new long[chunks];
+      SplittableRandom root = new SplittableRandom (seed);
+      for (int c = 0; c < chunks; c++)
+         seeds[c] = root.nextLong();
+      IntStream.range (0, chunks).parallel().forEach (c -> {
+         SplittableRandom r = new SplittableRandom (seeds[c]);
+         int to = Math.min (rows, (c + 1) * CHUNK);
+         for (int n = c * CHUNK; n < to; n++)
+            rotation (r, packed, 4 * n);
+      });
+   }
+
+   /** Stream of random rotations. The stream splits its generator when
+    * run in parallel.
+    * @param count number of rotations
+    * @return sized stream of unit quaternions
+    */
+   public Stream<Quaternion> rotations (long count) {
+      if (count < 0)
+         throw new IllegalArgumentException ("Count must not be negative: " + count);
+      return StreamSupport.stream (new RotationSpliterator (random.split(), 0, count), false);
+   }
+
+   /** One rotation into out[offset .. offset+3]. */
+   private static void rotation (SplittableRandom r, double[] out, int offset) {
+      final double u1 = r.nextDouble();
+      final double t2 = TWO_PI * r.nextDouble();
+      final double t3 = TWO_PI * r.nextDouble();
+      final double s1 = Math.sqrt (1. - u1);
+      final double s2 = Math.sqrt (u1);
+      out[offset] = s2 * Math.cos (t3);
+      out[offset + 1] = s1 * Math.sin (t2);
+      out[offset + 2] = s1 * Math.cos (t2);
+      out[offset + 3] = s2 * Math.sin (t3);
+   }
+
+   /** Rotations number index .. fence-1 of a stream. */
+   private static final class RotationSpliterator implements Spliterator<Quaternion> {
+      private final SplittableRandom random;
+      private final double[] buffer = new double[4];
+      private long index;
+      private final long fence;
+
+      RotationSpliterator (SplittableRandom random, long index, long fence) {
+         this.random = random;
+         this.index = index;
+         this.fence = fence;
+      }
+
+      @Override
+      public Spliterator<Quaternion> trySplit() {
+         long mid = (index + fence) >>> 1;
+         if (mid <= index)
+            return null;
+         RotationSpliterator prefix = new RotationSpliterator (random.split(), index, mid);
+         index = mid;
+         return prefix;
+      }
+
+      @Override
+      public boolean tryAdvance (Consumer<? super Quaternion> action) {
+         if (index >= fence)
+            return false;
+         rotation (random, buffer, 0);
+         index++;
+         action.accept (new Quaternion (buffer[0], buffer[1], buffer[2], buffer[3]));
+         return true;
+      }
+
+      @Override
+      public void forEachRemaining (Consumer<? super Quaternion> action) {
+         for (; index < fence; index++) {
+            rotation (random, buffer, 0);
+            action.accept (new Quaternion (buffer[0], buffer[1], buffer[2], buffer[3]));
+         }
+      }
+
+      @Override
+      public long estimateSize() {
+         return fence - index;
+      }
+
+      @Override
+      public int characteristics() {
+         return SIZED | SUBSIZED | NONNULL | IMMUTABLE;
+      }
+   }
+
+   /** Main method for benchmarking the generator.
+    * @param arg command line parameters: number of rotations (optional)
+    */
+   public static void main (String[] arg) {
+      int n = arg.length > 0 ? Integer.parseInt (arg[0]) : 10000000;
+      double[] packed = new double[4 * n];
+      QuaternionRandom generator = new QuaternionRandom (31);
+      for (int round = 0; round < 3; round++) {
+         long start = System.nanoTime();
+         Quaternion[] objects = new Quaternion[n];
+         for (int i = 0; i < n; i++)
+            objects[i] = new Quaternion (Math.random(), Math.random(), Math.random(), Math.random());
+         long middle = System.nanoTime();
+         generator.fill (packed, 0, n);
+         long fill = System.nanoTime();
+         parallelFill (packed, round);
+         long parallel = System.nanoTime();
+         double streamed = generator.rotations (n).parallel()
+            .mapToDouble (Quaternion::getRpart).sum();
+         long end = System.nanoTime();
+         System.out.printf ("round %d (million per second): Math.random %.1f, fill %.1f,"
+            + " parallelFill %.1f, stream %.1f (mean real part %.4f)%n", round,
+            n / ((middle - start) / 1e3), n / ((fill - middle) / 1e3),
+            n / ((parallel - fill) / 1e3), n / ((end - parallel) / 1e3), streamed / n);
+      }
+   }
+}
+// end of file
@@ -0,0 +1,290 @@
+import java.util.*;
+import java.util.function.Consumer;
+import java.util.stream.*;
+
+/** Support for quaternions in <code>java.util.stream</code>: collectors
+ * with mutable accumulators that can be joined after a parallel split,
+ * and streams over packed storage (row n at the elements
+ * <code>4*n .. 4*n+3</code> of a double array).
+ */
+public final class QuaternionStreams {
+
+   private QuaternionStreams() {
+   }
+
+   /** Collector of the sum, accumulated with <code>QuaternionSum</code>.
+    * @return collector of the compensated sum
+    */
+   public static Collector<Quaternion, ?, Quaternion> sum() {
+      return Collector.of (QuaternionSum::new, (s, q) -> s.add (q),
+         (left, right) -> left.add (right), QuaternionSum::sum,
+         Collector.Characteristics.UNORDERED);
+   }
+
+   /** Collector of the mean.
+    * @return collector of the mean; zero for an empty stream, as in
+    *     <code>Collectors.averagingDouble</code>
+    */
+   public static Collector<Quaternion, ?, Quaternion> mean() {
+      return Collector.of (QuaternionSum::new, (s, q) -> s.add (q),
+         (left, right) -> left.add (right),
+         s -> s.count() == 0 ? new Quaternion (0., 0., 0., 0.) : s.sum().times (1. / s.count()),
+         Collector.Characteristics.UNORDERED);
+   }
+
+   /** Collector of the product in encounter order, so that parallel
+    * streams give the same result as <code>reduce(Quaternion::times)</code>.
+    * @return collector of the product; one for an empty stream
+    */
+   public static Collector<Quaternion, ?, Quaternion> product() {
+      return Collector.of (Product::new, Product::times, Product::times, Product::value);
+   }
+
+   /** Collector of the average rotation. The inputs are normalized and q
+    * and -q count as the same rotation. The result is the unit quaternion
+    * a maximizing the sum of (a.q)^2, the eigenvector of the largest
+    * eigenvalue of the sum of the outer products q*q^T (F. L. Markley et
+    * al., Averaging Quaternions, 2007). For rotations close together it
+    * is the normalized mean of the sign-aligned inputs.
+    * @throws IllegalArgumentException if an input is zero
+    * @throws IllegalStateException if the stream is empty
+    * @return collector of the average rotation, with real part &gt;= 0
+    */
+   public static Collector<Quaternion, ?, Quaternion> normalizedAverage() {
+      return Collector.of (Scatter::new, Scatter::add, Scatter::add, Scatter::average,
+         Collector.Characteristics.UNORDERED);
+   }
+
+   /** Sequential stream over packed quaternions.
+    * @param packed quaternions, its length must be a multiple of 4
+    * @return stream of the rows of <code>packed</code>
+    */
+   public static Stream<Quaternion> stream (double[] packed) {
+      return StreamSupport.stream (spliterator (packed, 0, rows (packed)), false);
+   }
+
+   /** Parallel stream over packed quaternions.
+    * @param packed quaternions, its length must be a multiple of 4
+    * @return parallel stream of the rows of <code>packed</code>
+    */
+   public static Stream<Quaternion> parallelStream (double[] packed) {
+      return StreamSupport.stream (spliterator (packed, 0, rows (packed)), true);
+   }
+
+   /** Spliterator over a range of packed quaternions. It splits in halves
+    * and is SIZED and SUBSIZED, so parallel streams divide the work
+    * evenly and can write results straight into presized arrays.
+    * @param packed quaternions
+    * @param from first row (inclusive)
+    * @param to last row (exclusive)
+    * @return spliterator over the rows from .. to-1
+    */
+   public static Spliterator<Quaternion> spliterator (double[] packed, int from, int to) {
+      if (from < 0 || from > to || 4L * to > packed.length)
+         throw new IllegalArgumentException ("Bad row range " + from + ".." + to);
+      return new PackedSpliterator (packed, from, to);
+   }
+
+   private static int rows (double[] packed) {
+      if (packed.length % 4 != 0)
+         throw new IllegalArgumentException ("Packed length must be a multiple of 4: " + packed.length);
+      return packed.length / 4;
+   }
+
+   /** Rows index .. fence-1 of a packed array. */
+   private static final class PackedSpliterator implements Spliterator<Quaternion> {
+      private final double[] packed;
+      private int index;
+      private final int fence;
+
+      PackedSpliterator (double[] packed, int index, int fence) {
+         this.packed = packed;
+         this.index = index;
+         this.fence = fence;
+      }
+
+      @Override
+      public Spliterator<Quaternion> trySplit() {
+         int mid = (index + fence) >>> 1;
+         if (mid <= index)
+            return null;
+         Spliterator<Quaternion> prefix = new PackedSpliterator (packed, index, mid);
+         index = mid;
+         return prefix;
+      }
+
+      @Override
+      public boolean tryAdvance (Consumer<? super Quaternion> action) {
+         if (index >= fence)
+            return false;
+         int base = 4 * index++;
+         action.accept (new Quaternion (packed[base], packed[base + 1],
+            packed[base + 2], packed[base + 3]));
+         return true;
+      }
+
+      @Override
+      public void forEachRemaining (Consumer<? super Quaternion> action) {
+         for (int base = 4 * index; index < fence; index++, base += 4)
+            action.accept (new Quaternion (packed[base], packed[base + 1],
+               packed[base + 2], packed[base + 3]));
+      }
+
+      @Override
+      public long estimateSize() {
+         return fence - index;
+      }
+
+      @Override
+      public int characteristics() {
+         return ORDERED | SIZED | SUBSIZED | NONNULL | IMMUTABLE;
+      }
+   }
+
+   /** Running product, left to right. */
+   private static final class Product {
+      private double a = 1., b, c, d;
+
+      void times (Quaternion q) {
+         times (q.getRpart(), q.getIpart(), q.getJpart(), q.getKpart());
+      }
+
+      Product times (Product right) {
+         times (right.a, right.b, right.c, right.d);
+         return this;
+      }
+
+      private void times (double qa, double qb, double qc, double qd) {
+         final double na = a * qa - b * qb - c * qc - d * qd;
+         final double nb = a * qb + b * qa + c * qd - d * qc;
+         final double nc = a * qc - b * qd + c * qa + d * qb;
+         final double nd = a * qd + b * qc - c * qb + d * qa;
+         a = na;
+         b = nb;
+         c = nc;
+         d = nd;
+      }
+
+      Quaternion value() {
+         return new Quaternion (a, b, c, d);
+      }
+   }
+
+   /** Sum of the outer products q*q^T of unit quaternions, upper triangle. */
+   private static final class Scatter {
+      private final double[][] m = new double[4][4];
+      private long count;
+
+      void add (Quaternion q) {
+         final double a = q.getRpart(), b = q.getIpart(), c = q.getJpart(), d = q.getKpart();
+         final double squareNorm = a * a + b * b + c * c + d * d;
+         if (!(squareNorm > 0.) || Double.isInfinite (squareNorm))
+            throw new IllegalArgumentException ("Rotation must be a finite non-zero quaternion: " + q);
+         final double[][] m = this.m;
+         m[0][0] += a * a / squareNorm;
+         m[0][1] += a * b / squareNorm;
+         m[0][2] += a * c / squareNorm;
+         m[0][3] += a * d / squareNorm;
+         m[1][1] += b * b / squareNorm;
+         m[1][2] += b * c / squareNorm;
+         m[1][3] += b * d / squareNorm;
+         m[2][2] += c * c / squareNorm;
+         m[2][3] += c * d / squareNorm;
+         m[3][3] += d * d / squareNorm;
+         count++;
+      }
+
+      Scatter add (Scatter other) {
+         for (int i = 0; i < 4; i++)
+            for (int j = i; j < 4; j++)
+               m[i][j] += other.m[i][j];
+         count += other.count;
+         return this;
+      }
+
+      Quaternion average() {
+         if (count == 0)
+            throw new IllegalStateException ("Average of no rotations.");
+         double[][] a = new double[4][4];
+         for (int i = 0; i < 4; i++)
+            for (int j = i; j < 4; j++)
+               a[i][j] = a[j][i] = m[i][j];
+         double[] v = largestEigenvector (a);
+         double sign = v[0] < 0. ? -1. : 1.;
+         return new Quaternion (sign * v[0], sign * v[1], sign * v[2], sign * v[3]);
+      }
+   }
+
+   /** Unit eigenvector of the largest eigenvalue of a symmetric 4x4
+    * matrix by the cyclic Jacobi method. The matrix is overwritten. */
+   private static double[] largestEigenvector (double[][] a) {
+      double[][] v = new double[4][4];
+      for (int i = 0; i < 4; i++)
+         v[i][i] = 1.;
+      for (int sweep = 0; sweep < 50; sweep++) {
+         double off = 0., diagonal = 0.;
+         for (int p = 0; p < 4; p++) {
+            diagonal += a[p][p] * a[p][p];
+            for (int q = p + 1; q < 4; q++)
+               off += a[p][q] * a[p][q];
+         }
+         if (off <= 1e-30 * diagonal)
+            break;
+         for (int p = 0; p < 3; p++) {
+            for (int q = p + 1; q < 4; q++) {
+               if (a[p][q] == 0.)
+                  continue;
+               double theta = (a[q][q] - a[p][p]) / (2. * a[p][q]);
+               double t = Math.signum (theta) / (Math.abs (theta) + Math.sqrt (theta * theta + 1.));
+               if (theta == 0.)
+                  t = 1.;
+               double c = 1. / Math.sqrt (t * t + 1.), s = t * c;
+               for (int k = 0; k < 4; k++) {
+                  double akp = a[k][p], akq = a[k][q];
+                  a[k][p] = c * akp - s * akq;
+                  a[k][q] = s * akp + c * akq;
+               }
+               for (int k = 0; k < 4; k++) {
+                  double apk = a[p][k], aqk = a[q][k];
+                  a[p][k] = c * apk - s * aqk;
+                  a[q][k] = s * apk + c * aqk;
+               }
+               for (int k = 0; k < 4; k++) {
+                  double vkp = v[k][p], vkq = v[k][q];
+                  v[k][p] = c * vkp - s * vkq;
+                  v[k][q] = s * vkp + c * vkq;
+               }
+            }
+         }
+      }
+      int best = 0;
+      for (int i = 1; i < 4; i++)
+         if (a[i][i] > a[best][best])
+            best = i;
+      return new double[] { v[0][best], v[1][best], v[2][best], v[3][best] };
+   }
+
+   /** Main method for benchmarking the collectors against reduce.
+    * @param arg command line parameters: number of quaternions (optional)
+    */
+   public static void main (String[] arg) {
+      int n = arg.length > 0 ? Integer.parseInt (arg[0]) : 4000000;
+      double[] packed = new double[4 * n];
+      QuaternionRandom.parallelFill (packed, 32);
+      for (int round = 0; round < 3; round++) {
+         long start = System.nanoTime();
+         Quaternion reduced = parallelStream (packed).reduce (new Quaternion (0., 0., 0., 0.),
+            Quaternion::plus);
+         long middle = System.nanoTime();
+         Quaternion collected = parallelStream (packed).collect (sum());
+         long end = System.nanoTime();
+         Quaternion product = parallelStream (packed).collect (product());
+         long last = System.nanoTime();
+         System.out.printf ("round %d: reduce(plus) %.1f ns, collect(sum) %.1f ns,"
+            + " collect(product) %.1f ns per quaternion, sums agree %b, |product| %.6f%n",
+            round, (middle - start) / (double) n, (end - middle) / (double) n,
+            (last - end) / (double) n, reduced.equals (collected), product.norm());
+      }
+   }
+}
+// end of file
@@ -0,0 +1,253 @@
+import java.math.BigDecimal;
+import java.util.*;
+
+/** Accurate sum of many quaternions. Every component is accumulated
+ * separately with a compensated (Neumaier) sum, or in double-double
+ * arithmetic (an unevaluated sum hi+lo of two doubles) for still more
+ * precision. Adding does not create objects, so a single accumulator
+ * can replace a long chain of <code>Quaternion.plus</code> calls.
+ * Accumulators are not thread-safe; sum the parts of a large input in
+ * separate accumulators and join them with <code>add(QuaternionSum)</code>.
+ */
+public final class QuaternionSum {
+
+   /** Summation algorithm. */
+   public enum Mode {
+      /** Neumaier's improvement of Kahan summation, error independent of
+       * the number of addends for all but extreme inputs */
+      COMPENSATED,
+      /** double-double accumulator, about 32 significant digits */
+      DOUBLE_DOUBLE
+   }
+
+   private final Mode mode;
+   private final double[] sum = new double[4];
+   private final double[] correction = new double[4];
+   private long count;
+
+   /** Constructor of an empty compensated sum. */
+   public QuaternionSum() {
+      this (Mode.COMPENSATED);
+   }
+
+   /** Constructor of an empty sum.
+    * @param mode summation algorithm
+    */
+   public QuaternionSum (Mode mode) {
+      if (mode == null)
+         throw new IllegalArgumentException ("Mode must not be null.");
+      this.mode = mode;
+   }
+
+   /** Summation algorithm of the accumulator.
+    * @return mode given to the constructor
+    */
+   public Mode getMode() {
+      return mode;
+   }
+
+   /** Number of quaternions added.
+    * @return number of addends
+    */
+   public long count() {
+      return count;
+   }
+
+   /** Addition of a quaternion.
+    * @param q addend
+    * @return <code>this</code>
+    */
+   public QuaternionSum add (Quaternion q) {
+      return add (q.getRpart(), q.getIpart(), q.getJpart(), q.getKpart());
+   }
+
+   /** Addition of a quaternion given by its parts.
+    * @param a real part
+    * @param b imaginary part i
+    * @param c imaginary part j
+    * @param d imaginary part k
+    * @return <code>this</code>
+    */
+   public QuaternionSum add (double a, double b, double c, double d) {
+      if (mode == Mode.COMPENSATED) {
+         compensated (0, a);
+         compensated (1, b);
+         compensated (2, c);
+         compensated (3, d);
+      } else {
+         doubleDouble (0, a);
+         doubleDouble (1, b);
+         doubleDouble (2, c);
+         doubleDouble (3, d);
+      }
+      count++;
+      return this;
+   }
+
+   /** Addition of packed quaternions, row n at <code>4*n .. 4*n+3</code>.
+    * @param packed addends
+    * @param from first row (inclusive)
+    * @param to last row (exclusive)
+    * @return <code>this</code>
+    */
+   public QuaternionSum addAll (double[] packed, int from, int to) {
+      if (from < 0 || from > to || 4 * to > packed.length)
+         throw new IllegalArgumentException ("Bad row range " + from + ".." + to);
+      if (mode == Mode.COMPENSATED) {
+         for (int n = 4 * from; n < 4 * to; n += 4) {
+            compensated (0, packed[n]);
+            compensated (1, packed[n + 1]);
+            compensated (2, packed[n + 2]);
+            compensated (3, packed[n + 3]);
+         }
+      } else {
+         for (int n = 4 * from; n < 4 * to; n += 4) {
+            doubleDouble (0, packed[n]);
+            doubleDouble (1, packed[n + 1]);
+            doubleDouble (2, packed[n + 2]);
+            doubleDouble (3, packed[n + 3]);
+         }
+      }
+      count += to - from;
+      return this;
+   }
+
+   /** Addition of another sum, for joining partial results.
+    * @param other partial sum, not changed
+    * @return <code>this</code>
+    */
+   public QuaternionSum add (QuaternionSum other) {
+      for (int i = 0; i < 4; i++) {
+         if (mode == Mode.COMPENSATED) {
+            compensated (i, other.sum[i]);
+            compensated (i, other.correction[i]);
+         } else {
+            doubleDouble (i, other.sum[i]);
+            doubleDouble (i, other.correction[i]);
+         }
+      }
+      count += other.count;
+      return this;
+   }
+
+   /** Removal of all addends. */
+   public void clear() {
+      Arrays.fill (sum, 0.);
+      Arrays.fill (correction, 0.);
+      count = 0;
+   }
+
+   private void compensated (int i, double x) {
+      final double s = sum[i];
+      final double t = s + x;
+      if (Math.abs (s) >= Math.abs (x))
+         correction[i] += (s - t) + x;
+      else
+         correction[i] += (x - t) + s;
+      sum[i] = t;
+   }
+
+   private void doubleDouble (int i, double x) {
+      // two-sum of the high part and x, exact error e
+      final double hi = sum[i];
+      final double s = hi + x;
+      final double v = s - hi;
+      double e = (hi - (s - v)) + (x - v);
+      // add the low part and renormalize
+      e += correction[i];
+      final double h = s + e;
+      correction[i] = e - (h - s);
+      sum[i] = h;
+   }
+
+   /** Real part of the sum.
+    * @return real part, rounded to double
+    */
+   public double getRpart() {
+      return sum[0] + correction[0];
+   }
+
+   /** Imaginary part i of the sum.
+    * @return imaginary part i, rounded to double
+    */
+   public double getIpart() {
+      return sum[1] + correction[1];
+   }
+
+   /** Imaginary part j of the sum.
+    * @return imaginary part j, rounded to double
+    */
+   public double getJpart() {
+      return sum[2] + correction[2];
+   }
+
+   /** Imaginary part k of the sum.
+    * @return imaginary part k, rounded to double
+    */
+   public double getKpart() {
+      return sum[3] + correction[3];
+   }
+
+   /** Value of the sum.
+    * @return sum of all addends
+    */
+   public Quaternion sum() {
+      return new Quaternion (getRpart(), getIpart(), getJpart(), getKpart());
+   }
+
+   /** Conversion of the sum to the string.
+    * @return the sum in the form of <code>Quaternion.toString</code>
+    */
+   @Override
+   public String toString() {
+      return sum().toString();
+   }
+
+   /** Main method for benchmarking against chained <code>plus</code> calls.
+    * @param arg command line parameters: number of addends (optional)
+    */
+   public static void main (String[] arg) {
+      int n = arg.length > 0 ? Integer.parseInt (arg[0]) : 1000000;
+      Random random = new Random (29);
+      double[] packed = new double[4 * n];
+      Quaternion[] q = new Quaternion[n];
+      for (int r = 0; r < n; r++) {
+         for (int c = 0; c < 4; c++)
+            packed[4 * r + c] = (random.nextDouble() - 0.5) * Math.pow (10., random.nextInt (12));
+         q[r] = new Quaternion (packed[4 * r], packed[4 * r + 1], packed[4 * r + 2], packed[4 * r + 3]);
+      }
+
+      long start = System.nanoTime();
+      BigDecimal exact = BigDecimal.ZERO;
+      for (int r = 0; r < n; r++)
+         exact = exact.add (new BigDecimal (packed[4 * r]));
+      long bigTime = System.nanoTime() - start;
+
+      for (int round = 0; round < 5; round++) {
+         start = System.nanoTime();
+         Quaternion naive = new Quaternion (0., 0., 0., 0.);
+         for (int r = 0; r < n; r++)
+            naive = naive.plus (q[r]);
+         long naiveTime = System.nanoTime() - start;
+         start = System.nanoTime();
+         QuaternionSum compensated = new QuaternionSum (Mode.COMPENSATED).addAll (packed, 0, n);
+         long compensatedTime = System.nanoTime() - start;
+         start = System.nanoTime();
+         QuaternionSum doubleDouble = new QuaternionSum (Mode.DOUBLE_DOUBLE).addAll (packed, 0, n);
+         long doubleDoubleTime = System.nanoTime() - start;
+         System.out.printf ("round %d: plus %.2f ns, compensated %.2f ns, double-double %.2f ns"
+            + " per quaternion (BigDecimal real part only: %.2f ns)%n", round,
+            naiveTime / (double) n, compensatedTime / (double) n, doubleDoubleTime / (double) n,
+            bigTime / (double) n);
+         if (round == 0) {
+            System.out.println ("  error of the real part: plus "
+               + exact.subtract (new BigDecimal (naive.getRpart())).abs().doubleValue()
+               + ", compensated "
+               + exact.subtract (new BigDecimal (compensated.getRpart())).abs().doubleValue()
+               + ", double-double "
+               + exact.subtract (new BigDecimal (doubleDouble.getRpart())).abs().doubleValue());
+         }
+      }
+   }
+}
+// end of file
@@ -0,0 +1,84 @@
+
+import static org.junit.Assert.*;
+import org.junit.Test;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/** Test of the bulk conversion of text columns. */
+public class QuaternionColumnParserTest {
+
+   /** double numbers less than DELTA are considered zero */
+   public static final double DELTA = 0.000001;
+
+   private static final Quaternion[] SAMPLE = {
+      new Quaternion (2., 5., 7., 9.),
+      new Quaternion (-17., 10., 5., 8.),
+      new Quaternion (0., 0., 0., 0.),
+      new Quaternion (-3., -1., -10., -30.),
+      new Quaternion (-1., -5., 0.000001, 0.),
+      new Quaternion (0.1, 123456.789, -1.0E-20, 3.141592653589793),
+   };
+
+   @Test (timeout=1000)
+   public void testReadsToString() {
+      String[] rows = new String[SAMPLE.length];
+      for (int r = 0; r < rows.length; r++)
+         rows[r] = SAMPLE[r].toString();
+      QuaternionColumnParser.Result result = QuaternionColumnParser.parse (rows);
+      assertFalse ("no errors expected: " + result.errors(), result.hasErrors());
+      assertEquals ("wrong number of rows", SAMPLE.length, result.size());
+      for (int r = 0; r < rows.length; r++) {
+         assertEquals ("row " + r + " must read back what toString outputs",
+            SAMPLE[r], result.get (r));
+         assertEquals ("row " + r + " must be read exactly",
+            SAMPLE[r].getJpart(), result.values()[4 * r + 2], 0.);
+      }
+   }
+
+   @Test (timeout=1000)
+   public void testErrorsPerRow() {
+      List<String> rows = Arrays.asList ("1.0+2.0+3.0+4.0", "1.0+2.0+3.0",
+         "abc", "1.0+2.0+3.0+4.0+5.0", null, "-1-2-3-4", "", " 1+x+3+4 ");
+      QuaternionColumnParser.Result result = QuaternionColumnParser.parse (rows);
+      assertEquals ("every row must be reported",
+         new TreeSet<Integer> (Arrays.asList (1, 2, 3, 4, 6, 7)), result.errors().keySet());
+      assertEquals ("good rows must be parsed", new Quaternion (1., 2., 3., 4.), result.get (0));
+      assertEquals ("good rows must be parsed", new Quaternion (-1., -2., -3., -4.), result.get (5));
+      assertTrue ("failed rows must be NaN", Double.isNaN (result.values()[4]));
+   }
+
+   @Test (timeout=1000)
+   public void testBuffers() {
+      String text = "1.0+2.0+3.0+4.0\r\n-0.5-0.25+1.0E-5+7\nbad\n";
+      QuaternionColumnParser.Result chars =
+         QuaternionColumnParser.parse (text.toCharArray(), '\n');
+      QuaternionColumnParser.Result bytes =
+         QuaternionColumnParser.parse (text.getBytes (StandardCharsets.UTF_8), (byte) '\n');
+      for (QuaternionColumnParser.Result result : Arrays.asList (chars, bytes)) {
+         assertEquals ("trailing delimiter must not add a row", 3, result.size());
+         assertEquals ("first row", new Quaternion (1., 2., 3., 4.), result.get (0));
+         assertEquals ("exponent signs do not separate parts",
+            new Quaternion (-0.5, -0.25, 0.00001, 7.), result.get (1));
+         assertEquals ("only the last row is wrong",
+            Collections.singleton (2), result.errors().keySet());
+      }
+      assertEquals ("empty buffer has no rows", 0,
+         QuaternionColumnParser.parse (new char[0], '\n').size());
+   }
+
+   @Test (timeout=5000)
+   public void testManyRows() {
+      Random random = new Random (1);
+      String[] rows = new String[50000];
+      Quaternion[] expected = new Quaternion[rows.length];
+      for (int r = 0; r < rows.length; r++) {
+         expected[r] = new Quaternion (random.nextGaussian(), random.nextGaussian() * 1e-3,
+            random.nextInt (1000), -random.nextDouble());
+         rows[r] = expected[r].toString();
+      }
+      QuaternionColumnParser.Result result = QuaternionColumnParser.parse (rows);
+      assertFalse ("no errors expected: " + result.errors(), result.hasErrors());
+      for (int r = 0; r < rows.length; r++)
+         assertEquals ("row " + r, expected[r], result.get (r));
+   }
+}
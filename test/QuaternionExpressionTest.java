@@ -0,0 +1,95 @@
+
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+/** Test of the compiled quaternion expressions. */
+public class QuaternionExpressionTest {
+
+   /** double numbers less than DELTA are considered zero */
+   public static final double DELTA = 0.000001;
+
+   private static final QuaternionExpression A = QuaternionExpression.variable (0);
+   private static final QuaternionExpression B = QuaternionExpression.variable (1);
+   private static final QuaternionExpression C = QuaternionExpression.variable (2);
+
+   private static final Quaternion[][] ROWS = {
+      { new Quaternion (-1., 1, 2., -2.), new Quaternion (1., -2., -1., 2.),
+        new Quaternion (2., -3., 6., 24.) },
+      { new Quaternion (3., 7., -5., -2.), new Quaternion (0.5, 0., 0., -4.),
+        new Quaternion (-17., 10., 5., 8.) },
+      { new Quaternion (0., 0., 0., 1.), new Quaternion (2., 5., 3., 7.),
+        new Quaternion (0., 0., 0., 0.) },
+   };
+
+   private static double[][] columns() {
+      double[][] in = new double[3][4 * ROWS.length];
+      for (int r = 0; r < ROWS.length; r++)
+         for (int c = 0; c < 3; c++) {
+            in[c][4 * r] = ROWS[r][c].getRpart();
+            in[c][4 * r + 1] = ROWS[r][c].getIpart();
+            in[c][4 * r + 2] = ROWS[r][c].getJpart();
+            in[c][4 * r + 3] = ROWS[r][c].getKpart();
+         }
+      return in;
+   }
+
+   private static void assertSameAsChained (QuaternionExpression e) {
+      double[] out = new double[4 * ROWS.length];
+      e.compile().evaluate (columns(), out);
+      for (int r = 0; r < ROWS.length; r++) {
+         Quaternion expected = e.evaluate (ROWS[r]);
+         assertEquals ("wrong real part of " + e + " in row " + r,
+            expected.getRpart(), out[4 * r], DELTA);
+         assertEquals ("wrong part i of " + e + " in row " + r,
+            expected.getIpart(), out[4 * r + 1], DELTA);
+         assertEquals ("wrong part j of " + e + " in row " + r,
+            expected.getJpart(), out[4 * r + 2], DELTA);
+         assertEquals ("wrong part k of " + e + " in row " + r,
+            expected.getKpart(), out[4 * r + 3], DELTA);
+      }
+   }
+
+   @Test (timeout=1000)
+   public void testSingleOperations() {
+      assertSameAsChained (A);
+      assertSameAsChained (A.plus (B));
+      assertSameAsChained (A.minus (B));
+      assertSameAsChained (A.times (B));
+      assertSameAsChained (A.times (-2.5));
+      assertSameAsChained (A.conjugate());
+      assertSameAsChained (A.opposite());
+      assertSameAsChained (B.inverse());
+      assertSameAsChained (A.divideByLeft (B));
+      assertSameAsChained (A.divideByRight (B));
+      assertSameAsChained (A.dotMult (B));
+   }
+
+   @Test (timeout=1000)
+   public void testChains() {
+      assertSameAsChained (A.times (B).plus (C.conjugate()).divideByRight (B));
+      assertSameAsChained (C.minus (A).times (0.5).divideByLeft (B).opposite());
+      QuaternionExpression shared = A.times (B);
+      assertSameAsChained (shared.plus (shared).dotMult (shared.conjugate()));
+      assertSameAsChained (A.plus (QuaternionExpression.constant (
+         new Quaternion (1., 2., 3., 4.))).times (C));
+   }
+
+   @Test (timeout=1000)
+   public void testRange() {
+      double[] out = new double[4 * ROWS.length];
+      A.plus (B).compile().evaluate (columns(), out, 1, 2);
+      assertEquals ("rows before the range must not be written", 0., out[0], 0.);
+      assertEquals ("rows after the range must not be written", 0., out[8], 0.);
+      assertEquals ("wrong sum in the range", 3.5, out[4], DELTA);
+   }
+
+   @Test (expected=RuntimeException.class)
+   public void testDivisionByZero() {
+      A.divideByRight (C).compile().evaluate (columns(), new double[4 * ROWS.length]);
+   }
+
+   @Test (expected=IllegalArgumentException.class)
+   public void testMissingColumn() {
+      A.plus (C).compile().evaluate (new double[][] { new double[4] }, new double[4]);
+   }
+}
@@ -0,0 +1,114 @@
+
+import static org.junit.Assert.*;
+import org.junit.Test;
+import java.io.*;
+import java.util.*;
+
+/** Test of the nearest-orientation index. */
+public class QuaternionIndexTest {
+
+   /** double numbers less than DELTA are considered zero */
+   public static final double DELTA = 0.000001;
+
+   private static double[] randomRotations (int n, long seed) {
+      Random random = new Random (seed);
+      double[] packed = new double[4 * n];
+      for (int i = 0; i < packed.length; i++)
+         packed[i] = random.nextGaussian();
+      return packed;
+   }
+
+   private static Quaternion row (double[] packed, int n) {
+      return new Quaternion (packed[4 * n], packed[4 * n + 1],
+         packed[4 * n + 2], packed[4 * n + 3]);
+   }
+
+   private static double[] sortedAngles (double[] packed, Quaternion q) {
+      double[] angles = new double[packed.length / 4];
+      for (int n = 0; n < angles.length; n++)
+         angles[n] = QuaternionIndex.angle (q, row (packed, n));
+      Arrays.sort (angles);
+      return angles;
+   }
+
+   @Test (timeout=1000)
+   public void testAngle() {
+      Quaternion q = new Quaternion (1., 2., -3., 4.);
+      assertEquals ("q and -q are the same rotation", 0.,
+         QuaternionIndex.angle (q, q.opposite()), DELTA);
+      assertEquals ("scaling does not change the rotation", 0.,
+         QuaternionIndex.angle (q, q.times (-7.)), DELTA);
+      assertEquals ("rotation by pi around i", Math.PI, QuaternionIndex.angle (
+         new Quaternion (1., 0., 0., 0.), new Quaternion (0., 1., 0., 0.)), DELTA);
+      assertEquals ("rotation by pi/2 around k", Math.PI / 2, QuaternionIndex.angle (
+         new Quaternion (1., 0., 0., 0.), new Quaternion (1., 0., 0., 1.)), DELTA);
+   }
+
+   @Test (timeout=5000)
+   public void testNearestMatchesLinearScan() {
+      double[] packed = randomRotations (3000, 1);
+      QuaternionIndex index = QuaternionIndex.build (packed);
+      assertEquals ("wrong size", 3000, index.size());
+      double[] queries = randomRotations (50, 2);
+      QuaternionIndex.Neighbours[] found = index.nearest (queries, 7);
+      for (int q = 0; q < 50; q++) {
+         double[] exact = sortedAngles (packed, row (queries, q));
+         assertEquals ("wrong number of neighbours", 7, found[q].size());
+         for (int i = 0; i < 7; i++) {
+            assertEquals ("wrong neighbour " + i + " of query " + q,
+               exact[i], found[q].angle (i), DELTA);
+            assertEquals ("angle does not belong to the reported row", found[q].angle (i),
+               QuaternionIndex.angle (row (queries, q), row (packed, found[q].id (i))), DELTA);
+         }
+      }
+   }
+
+   @Test (timeout=5000)
+   public void testWithinAngleMatchesLinearScan() {
+      double[] packed = randomRotations (3000, 3);
+      QuaternionIndex index = QuaternionIndex.build (packed);
+      for (int q = 0; q < 20; q++) {
+         Quaternion query = row (randomRotations (20, 4), q);
+         double[] exact = sortedAngles (packed, query);
+         QuaternionIndex.Neighbours found = index.withinAngle (query, 0.4);
+         int expected = 0;
+         while (expected < exact.length && exact[expected] <= 0.4)
+            expected++;
+         assertEquals ("wrong number of rotations within 0.4", expected, found.size());
+         for (int i = 1; i < found.size(); i++)
+            assertTrue ("neighbours must be ordered", found.angle (i - 1) <= found.angle (i));
+      }
+   }
+
+   @Test (timeout=1000)
+   public void testOppositeIsSameRotation() {
+      double[] packed = randomRotations (100, 5);
+      QuaternionIndex index = QuaternionIndex.build (packed);
+      QuaternionIndex.Neighbours found = index.nearest (row (packed, 42).opposite(), 1);
+      assertEquals ("-q must find q", 42, found.id (0));
+      assertEquals ("-q must be at angle zero", 0., found.angle (0), DELTA);
+      assertEquals ("k larger than the index", 100, index.nearest (row (packed, 0), 500).size());
+   }
+
+   @Test (timeout=5000)
+   public void testSaveLoad() throws IOException {
+      double[] packed = randomRotations (500, 6);
+      QuaternionIndex index = QuaternionIndex.build (packed);
+      File file = File.createTempFile ("quaternion", ".idx");
+      try {
+         index.save (file.getPath());
+         QuaternionIndex loaded = QuaternionIndex.load (file.getPath());
+         assertEquals ("loaded index has wrong size", index.size(), loaded.size());
+         Quaternion q = new Quaternion (0.5, -1., 2., 0.25);
+         assertArrayEquals ("loaded index answers differently",
+            index.nearest (q, 10).ids(), loaded.nearest (q, 10).ids());
+      } finally {
+         file.delete();
+      }
+   }
+
+   @Test (expected=IllegalArgumentException.class)
+   public void testZeroOrientation() {
+      QuaternionIndex.build (new Quaternion[] { new Quaternion (0., 0., 0., 0.) });
+   }
+}
@@ -0,0 +1,64 @@
+
+import static org.junit.Assert.*;
+import org.junit.Test;
+import java.util.stream.*;
+
+/** Test of the random rotation generator. */
+public class QuaternionRandomTest {
+
+   /** double numbers less than DELTA are considered zero */
+   public static final double DELTA = 0.000001;
+
+   @Test (timeout=1000)
+   public void testUnitRotations() {
+      QuaternionRandom generator = new QuaternionRandom (1);
+      for (int n = 0; n < 1000; n++)
+         assertEquals ("rotation must be a unit quaternion", 1.,
+            generator.nextRotation().norm(), DELTA);
+      double[] packed = new double[400];
+      generator.fill (packed, 10, 100);
+      assertEquals ("rows before the range must not be written", 0., packed[39], 0.);
+      for (int n = 10; n < 100; n++)
+         assertEquals ("filled row must be a unit quaternion", 1., new Quaternion (packed[4 * n],
+            packed[4 * n + 1], packed[4 * n + 2], packed[4 * n + 3]).norm(), DELTA);
+   }
+
+   @Test (timeout=1000)
+   public void testReproducible() {
+      QuaternionRandom a = new QuaternionRandom (42), b = new QuaternionRandom (42);
+      for (int n = 0; n < 100; n++)
+         assertEquals ("equal seeds must give equal rotations", a.nextRotation(), b.nextRotation());
+      double[] first = new double[4 * 200000], second = new double[4 * 200000];
+      QuaternionRandom.parallelFill (first, 7);
+      QuaternionRandom.parallelFill (second, 7);
+      assertArrayEquals ("parallel fill must depend on the seed only", first, second, 0.);
+      QuaternionRandom.parallelFill (second, 8);
+      assertNotEquals ("different seeds must give different rotations", first[0], second[0], 0.);
+   }
+
+   @Test (timeout=2000)
+   public void testUniform() {
+      // on the uniform 3-sphere every coordinate has mean 0 and mean square 1/4
+      double[] packed = new double[4 * 200000];
+      QuaternionRandom.parallelFill (packed, 3);
+      double[] mean = new double[4], square = new double[4];
+      for (int i = 0; i < packed.length; i++) {
+         mean[i % 4] += packed[i] / 200000;
+         square[i % 4] += packed[i] * packed[i] / 200000;
+      }
+      for (int c = 0; c < 4; c++) {
+         assertEquals ("mean of coordinate " + c, 0., mean[c], 0.01);
+         assertEquals ("mean square of coordinate " + c, 0.25, square[c], 0.01);
+      }
+   }
+
+   @Test (timeout=2000)
+   public void testStream() {
+      QuaternionRandom generator = new QuaternionRandom (5);
+      assertEquals ("stream must be sized", 1000,
+         generator.rotations (1000).spliterator().getExactSizeIfKnown());
+      assertEquals ("parallel stream must yield every rotation", 100000,
+         generator.rotations (100000).parallel().filter (q -> Math.abs (q.norm() - 1.) < DELTA).count());
+      assertEquals ("empty stream", 0, generator.rotations (0).collect (Collectors.toList()).size());
+   }
+}
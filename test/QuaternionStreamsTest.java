@@ -0,0 +1,79 @@
+
+import static org.junit.Assert.*;
+import org.junit.Test;
+import java.util.*;
+import java.util.stream.*;
+
+/** Test of the stream support. */
+public class QuaternionStreamsTest {
+
+   /** double numbers less than DELTA are considered zero */
+   public static final double DELTA = 0.000001;
+
+   private static double[] sample (int n, long seed) {
+      double[] packed = new double[4 * n];
+      QuaternionRandom.parallelFill (packed, seed);
+      return packed;
+   }
+
+   @Test (timeout=1000)
+   public void testSpliterator() {
+      double[] packed = sample (1000, 1);
+      Spliterator<Quaternion> s = QuaternionStreams.spliterator (packed, 0, 1000);
+      assertTrue ("must be SIZED", s.hasCharacteristics (Spliterator.SIZED));
+      assertTrue ("must be SUBSIZED", s.hasCharacteristics (Spliterator.SUBSIZED));
+      Spliterator<Quaternion> prefix = s.trySplit();
+      assertEquals ("split must halve", 500, prefix.estimateSize());
+      assertEquals ("split must halve", 500, s.estimateSize());
+      List<Quaternion> all = QuaternionStreams.parallelStream (packed).collect (Collectors.toList());
+      assertEquals ("wrong number of rows", 1000, all.size());
+      for (int n = 0; n < 1000; n++)
+         assertEquals ("row " + n + " out of order", new Quaternion (packed[4 * n],
+            packed[4 * n + 1], packed[4 * n + 2], packed[4 * n + 3]), all.get (n));
+   }
+
+   @Test (timeout=1000)
+   public void testSumAndMean() {
+      double[] packed = sample (10000, 2);
+      Quaternion reduced = QuaternionStreams.stream (packed)
+         .reduce (new Quaternion (0., 0., 0., 0.), Quaternion::plus);
+      assertEquals ("sum differs from reduce(plus)", reduced,
+         QuaternionStreams.parallelStream (packed).collect (QuaternionStreams.sum()));
+      assertEquals ("mean differs from sum/n", reduced.times (1. / 10000),
+         QuaternionStreams.parallelStream (packed).collect (QuaternionStreams.mean()));
+      assertTrue ("mean of nothing is zero",
+         Stream.<Quaternion>empty().collect (QuaternionStreams.mean()).isZero());
+   }
+
+   @Test (timeout=1000)
+   public void testProductKeepsOrder() {
+      double[] packed = sample (5000, 3);
+      Quaternion reduced = QuaternionStreams.stream (packed).reduce (Quaternion::times).get();
+      assertEquals ("parallel product differs from reduce(times)", reduced,
+         QuaternionStreams.parallelStream (packed).collect (QuaternionStreams.product()));
+      assertEquals ("product of nothing is one", new Quaternion (1., 0., 0., 0.),
+         Stream.<Quaternion>empty().collect (QuaternionStreams.product()));
+   }
+
+   @Test (timeout=1000)
+   public void testNormalizedAverage() {
+      Quaternion q = new Quaternion (0.5, 0.5, 0.5, 0.5);
+      Quaternion average = Stream.of (q, q.opposite(), q.times (3.))
+         .collect (QuaternionStreams.normalizedAverage());
+      assertEquals ("q, -q and 3q average to q", q, average);
+
+      // small rotations around i by +-0.1 rad average to the identity
+      double s = Math.sin (0.05), c = Math.cos (0.05);
+      average = Stream.of (new Quaternion (c, s, 0., 0.), new Quaternion (-c, s, 0., 0.))
+         .parallel().collect (QuaternionStreams.normalizedAverage());
+      assertEquals ("opposite small rotations average to identity",
+         new Quaternion (1., 0., 0., 0.), average);
+      assertEquals ("average must be a unit quaternion", 1., QuaternionStreams.parallelStream (
+         sample (1000, 4)).collect (QuaternionStreams.normalizedAverage()).norm(), DELTA);
+   }
+
+   @Test (expected=IllegalStateException.class)
+   public void testAverageOfNothing() {
+      Stream.<Quaternion>empty().collect (QuaternionStreams.normalizedAverage());
+   }
+}
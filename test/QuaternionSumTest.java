@@ -0,0 +1,75 @@
+
+import static org.junit.Assert.*;
+import org.junit.Test;
+import java.util.*;
+
+/** Test of the accurate quaternion sum. */
+public class QuaternionSumTest {
+
+   /** double numbers less than DELTA are considered zero */
+   public static final double DELTA = 0.000001;
+
+   @Test (timeout=1000)
+   public void testPlainSum() {
+      for (QuaternionSum.Mode mode : QuaternionSum.Mode.values()) {
+         QuaternionSum s = new QuaternionSum (mode);
+         assertTrue ("empty sum must be zero", s.sum().isZero());
+         s.add (new Quaternion (1., 6., 8., 10.)).add (-4., -75., -45., -1.);
+         assertEquals ("wrong sum in mode " + mode,
+            new Quaternion (1., 6., 8., 10.).plus (new Quaternion (-4., -75., -45., -1.)),
+            s.sum());
+         assertEquals ("wrong count", 2, s.count());
+         s.clear();
+         assertTrue ("cleared sum must be zero", s.sum().isZero());
+         assertEquals ("cleared count", 0, s.count());
+      }
+   }
+
+   @Test (timeout=1000)
+   public void testCancellation() {
+      double[] packed = { 1e16, -1e16, 1e100, 2., 1., 1., 1., 1.,
+                          -1e16, 1e16, -1e100, 2. };
+      Quaternion naive = new Quaternion (0., 0., 0., 0.);
+      for (int n = 0; n < 3; n++)
+         naive = naive.plus (new Quaternion (packed[4 * n], packed[4 * n + 1],
+            packed[4 * n + 2], packed[4 * n + 3]));
+      assertEquals ("plus is expected to lose the small addend", 0., naive.getRpart(), 0.);
+      for (QuaternionSum.Mode mode : QuaternionSum.Mode.values()) {
+         QuaternionSum s = new QuaternionSum (mode).addAll (packed, 0, 3);
+         assertEquals ("real part lost in mode " + mode, 1., s.getRpart(), 0.);
+         assertEquals ("part i lost in mode " + mode, 1., s.getIpart(), 0.);
+         assertEquals ("part j lost in mode " + mode, 1., s.getJpart(), 0.);
+         assertEquals ("part k wrong in mode " + mode, 5., s.getKpart(), 0.);
+      }
+   }
+
+   @Test (timeout=1000)
+   public void testManySmallAddends() {
+      QuaternionSum compensated = new QuaternionSum();
+      QuaternionSum doubleDouble = new QuaternionSum (QuaternionSum.Mode.DOUBLE_DOUBLE);
+      for (int n = 0; n < 100000; n++) {
+         compensated.add (0.1, 0.01, -0.1, 1e-3);
+         doubleDouble.add (0.1, 0.01, -0.1, 1e-3);
+      }
+      assertEquals ("compensated sum of 0.1", 10000., compensated.getRpart(), 1e-11);
+      assertEquals ("double-double sum of 0.1", 10000., doubleDouble.getRpart(), 1e-11);
+      assertEquals ("compensated sum of 1e-3", 100., compensated.getKpart(), 1e-12);
+   }
+
+   @Test (timeout=1000)
+   public void testJoinPartialSums() {
+      Random random = new Random (1);
+      double[] packed = new double[4000];
+      for (int i = 0; i < packed.length; i++)
+         packed[i] = random.nextGaussian() * Math.pow (10., random.nextInt (10));
+      for (QuaternionSum.Mode mode : QuaternionSum.Mode.values()) {
+         QuaternionSum whole = new QuaternionSum (mode).addAll (packed, 0, 1000);
+         QuaternionSum left = new QuaternionSum (mode).addAll (packed, 0, 400);
+         QuaternionSum right = new QuaternionSum (mode).addAll (packed, 400, 1000);
+         left.add (right);
+         assertEquals ("joined count", 1000, left.count());
+         assertEquals ("joined sum differs in mode " + mode, whole.getRpart(), left.getRpart(), DELTA);
+         assertEquals ("joined sum differs in mode " + mode, whole.getKpart(), left.getKpart(), DELTA);
+      }
+   }
+}